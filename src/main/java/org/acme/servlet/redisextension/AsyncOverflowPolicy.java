@@ -0,0 +1,25 @@
+package org.acme.servlet.redisextension;
+
+/**
+ * Defines what happens to a Redis write if the queue of the asynchronous write mode is full.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+public enum AsyncOverflowPolicy {
+
+    /**
+     * The writing thread waits until the queue has space again.
+     */
+    BLOCK,
+    /**
+     * The oldest queued write of session attributes is dropped to make space for the new one, and the session is written as a whole by its next
+     * flush. Deleting or renaming a session is never dropped, the writing thread waits instead.
+     */
+    DROP_OLDEST,
+    /**
+     * The new write of session attributes is rejected, and the session is written as a whole by its next flush. Deleting or renaming a session is
+     * never rejected, the writing thread waits instead.
+     */
+    FAIL_FAST
+}
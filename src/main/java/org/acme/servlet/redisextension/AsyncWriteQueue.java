@@ -0,0 +1,195 @@
+package org.acme.servlet.redisextension;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+import io.vertx.mutiny.redis.client.Request;
+import io.vertx.mutiny.redis.client.Response;
+
+/**
+ * A bounded queue of Redis writes, drained by a small pool of writer threads, so request threads don't wait for Redis when writing sessions. The
+ * queue is split into one stripe per writer and the writes of a session always go to the same stripe, so they are applied in order.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class AsyncWriteQueue {
+
+    private static final long POLL_INTERVAL_MILLIS = 100;
+
+    private final BiFunction<String, List<Request>, List<Response>> sender;
+    private final Duration redisTimeout;
+    private final AsyncOverflowPolicy overflowPolicy;
+    private final List<BlockingQueue<Write>> stripes;
+    private final Thread[] writers;
+
+    private volatile boolean stopped;
+
+    /**
+     * @param sender
+     *            sends a pipelined batch of requests of a session to Redis and waits for the responses
+     */
+    AsyncWriteQueue(final BiFunction<String, List<Request>, List<Response>> sender, final Duration redisTimeout, final int capacity,
+            final int writerCount, final AsyncOverflowPolicy overflowPolicy) {
+
+        this.sender = sender;
+        this.redisTimeout = redisTimeout;
+        this.overflowPolicy = overflowPolicy;
+        final int stripeCount = Math.max(1, writerCount);
+        this.stripes = new ArrayList<>(stripeCount);
+        this.writers = new Thread[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            final BlockingQueue<Write> stripe = new ArrayBlockingQueue<>(Math.max(1, capacity / stripeCount));
+            this.stripes.add(stripe);
+            final Thread writer = new Thread(() -> drain(stripe), "redis-session-writer-" + i);
+            writer.setDaemon(true);
+            writer.start();
+            this.writers[i] = writer;
+        }
+    }
+
+    /**
+     * Queues a pipelined batch of requests, which may be dropped or rejected if the queue is full.
+     *
+     * @param sessionId
+     *            the id of the session written, which determines the stripe
+     * @param requests
+     *            the requests to send
+     * @return a future completed with the responses once the batch has been written
+     */
+    CompletableFuture<List<Response>> submit(final String sessionId, final List<Request> requests) {
+
+        return submit(sessionId, requests, true);
+    }
+
+    /**
+     * Queues a pipelined batch of requests.
+     *
+     * @param sessionId
+     *            the id of the session written, which determines the stripe
+     * @param requests
+     *            the requests to send
+     * @param droppable
+     *            whether the write may be dropped or rejected if the queue is full, which must not happen to writes that can't be repeated by a later
+     *            write of the session, like deleting or renaming it. The calling thread waits for space in the queue instead.
+     * @return a future completed with the responses once the batch has been written, or completed exceptionally if the write has been dropped or
+     *         rejected
+     */
+    CompletableFuture<List<Response>> submit(final String sessionId, final List<Request> requests, final boolean droppable) {
+
+        final Write write = new Write(sessionId, requests, droppable);
+        final BlockingQueue<Write> stripe = this.stripes.get(Math.floorMod(sessionId.hashCode(), this.stripes.size()));
+
+        switch (this.overflowPolicy) {
+            case BLOCK:
+                put(stripe, write);
+                break;
+            case DROP_OLDEST:
+                while (!stripe.offer(write)) {
+                    final Write dropped = oldestDroppable(stripe);
+                    if (dropped == null) {
+                        // only writes that must not be dropped are queued
+                        put(stripe, write);
+                        break;
+                    }
+                    if (stripe.remove(dropped)) {
+                        dropped.result.completeExceptionally(new IllegalStateException("Redis write queue is full, the write has been dropped"));
+                    }
+                }
+                break;
+            case FAIL_FAST:
+            default:
+                if (!stripe.offer(write)) {
+                    if (droppable) {
+                        write.result.completeExceptionally(new IllegalStateException("Redis write queue is full, rejecting a write of session "
+                                + sessionId));
+                    } else {
+                        put(stripe, write);
+                    }
+                }
+                break;
+        }
+        return write.result;
+    }
+
+    private static void put(final BlockingQueue<Write> stripe, final Write write) {
+
+        try {
+            stripe.put(write);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            write.result.completeExceptionally(e);
+        }
+    }
+
+    private static Write oldestDroppable(final BlockingQueue<Write> stripe) {
+
+        for (final Write write : stripe) {
+            if (write.droppable) {
+                return write;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Stops the writers once all queued writes have been sent, waiting at most for the Redis timeout.
+     */
+    void stop() {
+
+        this.stopped = true;
+        for (final Thread writer : this.writers) {
+            try {
+                writer.join(this.redisTimeout.toMillis());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void drain(final BlockingQueue<Write> stripe) {
+
+        while (!this.stopped || !stripe.isEmpty()) {
+            try {
+                final Write write = stripe.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (write != null) {
+                    write.send();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private final class Write {
+
+        private final String sessionId;
+        private final List<Request> requests;
+        private final boolean droppable;
+        private final CompletableFuture<List<Response>> result = new CompletableFuture<>();
+
+        private Write(final String sessionId, final List<Request> requests, final boolean droppable) {
+
+            this.sessionId = sessionId;
+            this.requests = requests;
+            this.droppable = droppable;
+        }
+
+        private void send() {
+
+            try {
+                this.result.complete(AsyncWriteQueue.this.sender.apply(this.sessionId, this.requests));
+            } catch (final RuntimeException e) {
+                this.result.completeExceptionally(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.acme.servlet.redisextension;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * A cheap fingerprint of a serialized session attribute, consisting of the length and a 64-bit hash of the serialized bytes. It is used to detect
+ * attributes whose serialized form did not change since they were last persisted, so they don't have to be written to Redis again. Fingerprints
+ * are always taken from the value as stored in Redis, compressed if it exceeds the compression threshold, so the fingerprints of written values
+ * match the ones of values loaded from Redis.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class AttributeFingerprint {
+
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final long MULTIPLIER = 0xBF58476D1CE4E5B9L;
+
+    private final int length;
+    private final long hash;
+
+    private AttributeFingerprint(final int length, final long hash) {
+
+        this.length = length;
+        this.hash = hash;
+    }
+
+    static AttributeFingerprint of(final byte[] bytes) {
+
+        return of(bytes, 0, bytes.length);
+    }
+
+    static AttributeFingerprint of(final ByteBuf buffer) {
+
+        if (buffer.hasArray()) {
+            return of(buffer.array(), buffer.arrayOffset() + buffer.readerIndex(), buffer.readableBytes());
+        }
+        final byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), bytes);
+        return of(bytes);
+    }
+
+    static AttributeFingerprint of(final byte[] bytes, final int offset, final int length) {
+
+        long hash = SEED ^ length;
+        final int end = offset + length;
+        int i = offset;
+        for (; i + Long.BYTES <= end; i += Long.BYTES) {
+            hash = mix(hash ^ readLong(bytes, i));
+        }
+        long tail = 0;
+        for (; i < end; i++) {
+            tail = (tail << Byte.SIZE) | (bytes[i] & 0xFF);
+        }
+        return new AttributeFingerprint(length, mix(hash ^ tail));
+    }
+
+    private static long readLong(final byte[] bytes, final int offset) {
+
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << Byte.SIZE) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static long mix(final long value) {
+
+        long mixed = value * MULTIPLIER;
+        mixed ^= mixed >>> 31;
+        return mixed * SEED;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        final AttributeFingerprint that = (AttributeFingerprint) o;
+        return this.length == that.length && this.hash == that.hash;
+    }
+
+    @Override
+    public int hashCode() {
+
+        return Long.hashCode(this.hash);
+    }
+
+    @Override
+    public String toString() {
+
+        return "AttributeFingerprint{" + "length=" + this.length + ", hash=" + Long.toHexString(this.hash) + '}';
+    }
+}
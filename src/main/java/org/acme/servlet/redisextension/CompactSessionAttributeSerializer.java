@@ -0,0 +1,191 @@
+package org.acme.servlet.redisextension;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.acme.servlet.redisextension.ObjectSubstitution.SubstitutingObjectInputStream;
+import org.acme.servlet.redisextension.ObjectSubstitution.SubstitutingObjectOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link SessionAttributeSerializer} based on Java serialization, which replaces the class descriptors of registered classes with a two byte
+ * registration id. Java serialization writes the full descriptor (class name, serialVersionUID and all field names and types) of every class once per
+ * stream, which makes up a large part of a serialized VaadinSession. As the regular serialization mechanism is used otherwise, custom
+ * <CODE>writeObject</CODE>/<CODE>readObject</CODE> methods of Vaadin and application classes keep working.
+ *
+ * The registration id of a class is its position in the registration list, so the list must be identical on all nodes. Classes that can't be loaded
+ * keep their position, but are written with a full descriptor. A registered class is always read with its local descriptor, so a class with changed
+ * fields must be removed from the registration list (or the cluster switched back to the <CODE>jdk</CODE> serializer) before it is rolled out.
+ *
+ * Additional classes are registered with the environment variable <CODE>ch.inacta.vaadin.redisCache.serializer.compact.classes</CODE>, a comma
+ * separated list of fully qualified class names, which is appended to the {@link #DEFAULT_REGISTERED_CLASSES}.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+public class CompactSessionAttributeSerializer implements SessionAttributeSerializer {
+
+    public static final byte FORMAT_ID = 2;
+
+    public static final List<String> DEFAULT_REGISTERED_CLASSES = Collections.unmodifiableList(Arrays.asList(
+            "java.util.ArrayList",
+            "java.util.HashMap",
+            "java.util.HashSet",
+            "java.util.LinkedHashMap",
+            "java.util.LinkedHashSet",
+            "java.util.LinkedList",
+            "java.util.Locale",
+            "java.util.concurrent.ConcurrentHashMap",
+            "java.lang.Boolean",
+            "java.lang.Integer",
+            "java.lang.Long",
+            "java.lang.Number",
+            "java.lang.Enum",
+            "java.lang.invoke.SerializedLambda",
+            "[Ljava.lang.Object;",
+            "com.vaadin.flow.server.VaadinSession",
+            "com.vaadin.flow.server.VaadinSessionState",
+            "com.vaadin.flow.component.UI",
+            "com.vaadin.flow.component.internal.UIInternals",
+            "com.vaadin.flow.component.ComponentEventBus",
+            "com.vaadin.flow.component.ComponentEventBus$ListenerWrapper",
+            "com.vaadin.flow.dom.Element",
+            "com.vaadin.flow.internal.StateTree",
+            "com.vaadin.flow.internal.StateNode",
+            "com.vaadin.flow.internal.nodefeature.ElementData",
+            "com.vaadin.flow.internal.nodefeature.ElementPropertyMap",
+            "com.vaadin.flow.internal.nodefeature.ElementAttributeMap",
+            "com.vaadin.flow.internal.nodefeature.ElementChildrenList",
+            "com.vaadin.flow.internal.nodefeature.ElementListenerMap",
+            "com.vaadin.flow.internal.nodefeature.ElementListenerMap$DomEventListenerWrapper",
+            "com.vaadin.flow.internal.nodefeature.ElementClassList",
+            "com.vaadin.flow.internal.nodefeature.ElementStylePropertyMap",
+            "com.vaadin.flow.internal.nodefeature.ComponentMapping",
+            "com.vaadin.flow.internal.nodefeature.VirtualChildrenList",
+            "com.vaadin.flow.internal.nodefeature.ClientCallableHandlers",
+            "com.vaadin.flow.internal.nodefeature.PolymerEventListenerMap",
+            "com.vaadin.flow.internal.nodefeature.ShadowRootHost",
+            "com.vaadin.flow.internal.nodefeature.AttachExistingElementFeature",
+            "com.vaadin.flow.internal.nodefeature.ReturnChannelMap",
+            "com.vaadin.flow.router.Location",
+            "com.vaadin.flow.router.QueryParameters"));
+
+    private static final int FULL_DESCRIPTOR = 0;
+    private static final int REGISTERED_DESCRIPTOR = 1;
+    private static final Logger LOG = LoggerFactory.getLogger(CompactSessionAttributeSerializer.class);
+
+    private final List<Class<?>> registeredClasses = new ArrayList<>();
+    private final Map<Class<?>, Integer> registrationIds = new HashMap<>();
+
+    public CompactSessionAttributeSerializer() {
+
+        this(Collections.emptyList());
+    }
+
+    /**
+     * @param additionalClassNames
+     *            the names of the classes to register after the {@link #DEFAULT_REGISTERED_CLASSES}
+     */
+    public CompactSessionAttributeSerializer(final List<String> additionalClassNames) {
+
+        final List<String> classNames = new ArrayList<>(DEFAULT_REGISTERED_CLASSES);
+        classNames.addAll(additionalClassNames);
+        for (final String className : classNames) {
+            final Class<?> registeredClass = loadClass(className);
+            if (registeredClass != null) {
+                this.registrationIds.put(registeredClass, this.registeredClasses.size());
+            }
+            this.registeredClasses.add(registeredClass);
+        }
+    }
+
+    @Override
+    public byte getFormatId() {
+
+        return FORMAT_ID;
+    }
+
+    @Override
+    public void serialize(final Object value, final OutputStream outputStream) throws IOException {
+
+        final ObjectOutputStream objectOutputStream = new CompactObjectOutputStream(outputStream);
+        objectOutputStream.writeObject(value);
+        objectOutputStream.flush();
+    }
+
+    @Override
+    public Object deserialize(final InputStream inputStream) throws IOException, ClassNotFoundException {
+
+        try (final ObjectInputStream objectInputStream = new CompactObjectInputStream(inputStream)) {
+            return objectInputStream.readObject();
+        }
+    }
+
+    private static Class<?> loadClass(final String className) {
+
+        try {
+            return Class.forName(className, false, CompactSessionAttributeSerializer.class.getClassLoader());
+        } catch (final ClassNotFoundException e) {
+            LOG.warn("Class {} registered for compact session serialization not found, it will be written with a full descriptor", className);
+            return null;
+        }
+    }
+
+    private class CompactObjectOutputStream extends SubstitutingObjectOutputStream {
+
+        private CompactObjectOutputStream(final OutputStream outputStream) throws IOException {
+
+            super(outputStream);
+        }
+
+        @Override
+        protected void writeClassDescriptor(final ObjectStreamClass descriptor) throws IOException {
+
+            final Integer registrationId = CompactSessionAttributeSerializer.this.registrationIds.get(descriptor.forClass());
+            if (registrationId == null) {
+                writeByte(FULL_DESCRIPTOR);
+                super.writeClassDescriptor(descriptor);
+            } else {
+                writeByte(REGISTERED_DESCRIPTOR);
+                writeShort(registrationId);
+            }
+        }
+    }
+
+    private class CompactObjectInputStream extends SubstitutingObjectInputStream {
+
+        private CompactObjectInputStream(final InputStream inputStream) throws IOException {
+
+            super(inputStream);
+        }
+
+        @Override
+        protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+
+            final int type = readUnsignedByte();
+            if (type == FULL_DESCRIPTOR) {
+                return super.readClassDescriptor();
+            }
+
+            final int registrationId = readUnsignedShort();
+            final Class<?> registeredClass = registrationId < CompactSessionAttributeSerializer.this.registeredClasses.size()
+                    ? CompactSessionAttributeSerializer.this.registeredClasses.get(registrationId)
+                    : null;
+            if (registeredClass == null) {
+                throw new ClassNotFoundException("No class registered for compact session serialization with id " + registrationId);
+            }
+            return ObjectStreamClass.lookupAny(registeredClass);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.acme.servlet.redisextension;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Field;
+
+/**
+ * Reads and writes a private field by name. The field is resolved once per class into a {@link VarHandle}, searching the class hierarchy, so
+ * repeated accesses don't pay for reflective lookups and accessibility checks.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class FieldAccessor {
+
+    private final String fieldName;
+    private final ClassValue<ResolvedField> resolvedFields = new ClassValue<ResolvedField>() {
+
+        @Override
+        protected ResolvedField computeValue(final Class<?> type) {
+
+            return resolve(type);
+        }
+    };
+
+    FieldAccessor(final String fieldName) {
+
+        this.fieldName = fieldName;
+    }
+
+    Object get(final Object target) throws ReflectiveOperationException {
+
+        return this.resolvedFields.get(target.getClass()).handle().get(target);
+    }
+
+    void set(final Object target, final Object value) throws ReflectiveOperationException {
+
+        this.resolvedFields.get(target.getClass()).handle().set(target, value);
+    }
+
+    private ResolvedField resolve(final Class<?> type) {
+
+        for (Class<?> declaringClass = type; declaringClass != null; declaringClass = declaringClass.getSuperclass()) {
+            try {
+                final Field field = declaringClass.getDeclaredField(this.fieldName);
+                return new ResolvedField(MethodHandles.privateLookupIn(declaringClass, MethodHandles.lookup()).unreflectVarHandle(field), null);
+            } catch (final NoSuchFieldException e) {
+                // continue with the superclass
+            } catch (final IllegalAccessException e) {
+                return new ResolvedField(null, e);
+            }
+        }
+        return new ResolvedField(null, new NoSuchFieldException(this.fieldName + " in " + type.getName()));
+    }
+
+    /**
+     * The cached result of resolving the field in a class, either the handle or the reason why it could not be resolved.
+     */
+    private static final class ResolvedField {
+
+        private final VarHandle handle;
+        private final ReflectiveOperationException failure;
+
+        private ResolvedField(final VarHandle handle, final ReflectiveOperationException failure) {
+
+            this.handle = handle;
+            this.failure = failure;
+        }
+
+        private VarHandle handle() throws ReflectiveOperationException {
+
+            if (this.failure != null) {
+                throw this.failure;
+            }
+            return this.handle;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.acme.servlet.redisextension;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import org.acme.servlet.redisextension.ObjectSubstitution.SubstitutingObjectInputStream;
+import org.acme.servlet.redisextension.ObjectSubstitution.SubstitutingObjectOutputStream;
+
+/**
+ * The default {@link SessionAttributeSerializer}, using plain Java serialization.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+public class JdkSessionAttributeSerializer implements SessionAttributeSerializer {
+
+    public static final byte FORMAT_ID = 1;
+
+    @Override
+    public byte getFormatId() {
+
+        return FORMAT_ID;
+    }
+
+    @Override
+    public void serialize(final Object value, final OutputStream outputStream) throws IOException {
+
+        final ObjectOutputStream objectOutputStream = new SubstitutingObjectOutputStream(outputStream);
+        objectOutputStream.writeObject(value);
+        objectOutputStream.flush();
+    }
+
+    @Override
+    public Object deserialize(final InputStream inputStream) throws IOException, ClassNotFoundException {
+
+        try (final ObjectInputStream objectInputStream = new SubstitutingObjectInputStream(inputStream)) {
+            return objectInputStream.readObject();
+        }
+    }
+}
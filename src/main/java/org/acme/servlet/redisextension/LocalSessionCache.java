@@ -0,0 +1,247 @@
+package org.acme.servlet.redisextension;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the weight of the in-memory session copies within a budget in bytes. The weight of a session is the serialized size of its attributes.
+ *
+ * The eviction policy follows W-TinyLFU: sessions enter a small LRU window, and sessions leaving the window are only admitted to the main LRU area
+ * if they are accessed more frequently than the sessions they would push out. Access frequencies are estimated by a count-min sketch whose
+ * counters are halved periodically, so old popularity fades. This way a few large sessions that are rarely used can't push out many small ones
+ * that are used all the time.
+ *
+ * Evicting a session means dropping its in-memory copy, the session is kept in Redis. The cache only decides which sessions to evict; it is up to
+ * the caller to drop them.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class LocalSessionCache {
+
+    private static final int WINDOW_PERCENTAGE = 1;
+
+    private final long maxWeight;
+    private final long maxWindowWeight;
+    private final Predicate<String> evictable;
+    private final FrequencySketch sketch = new FrequencySketch();
+    private final LinkedHashMap<String, Long> window = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> main = new LinkedHashMap<>(16, 0.75f, true);
+    private long windowWeight;
+    private long totalWeight;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxWeight
+     *            the budget in bytes, no session is evicted if it is not positive
+     * @param evictable
+     *            checks if a session may be evicted, e.g. because it is not in use
+     */
+    LocalSessionCache(final long maxWeight, final Predicate<String> evictable) {
+
+        this.maxWeight = maxWeight;
+        this.maxWindowWeight = Math.max(1, maxWeight * WINDOW_PERCENTAGE / 100);
+        this.evictable = evictable;
+    }
+
+    boolean isBounded() {
+
+        return this.maxWeight > 0;
+    }
+
+    void recordHit(final String sessionId) {
+
+        this.hits.incrementAndGet();
+        if (isBounded()) {
+            synchronized (this) {
+                this.sketch.increment(sessionId);
+                if (this.window.get(sessionId) == null) {
+                    this.main.get(sessionId);
+                }
+            }
+        }
+    }
+
+    void recordMiss() {
+
+        this.misses.incrementAndGet();
+    }
+
+    /**
+     * Sets the weight of a session, adding it to the cache if it is not known yet.
+     *
+     * @return the ids of the sessions to evict to stay within the budget
+     */
+    synchronized List<String> update(final String sessionId, final long weight) {
+
+        if (!isBounded()) {
+            return Collections.emptyList();
+        }
+        final Long mainWeight = this.main.get(sessionId);
+        if (mainWeight != null) {
+            this.main.put(sessionId, weight);
+            this.totalWeight += weight - mainWeight;
+        } else {
+            final Long windowEntryWeight = this.window.put(sessionId, weight);
+            final long previous = windowEntryWeight == null ? 0 : windowEntryWeight;
+            this.windowWeight += weight - previous;
+            this.totalWeight += weight - previous;
+            if (windowEntryWeight == null) {
+                this.sketch.increment(sessionId);
+            }
+        }
+        return evict();
+    }
+
+    synchronized void remove(final String sessionId) {
+
+        if (!isBounded()) {
+            return;
+        }
+        final Long windowEntryWeight = this.window.remove(sessionId);
+        if (windowEntryWeight != null) {
+            this.windowWeight -= windowEntryWeight;
+            this.totalWeight -= windowEntryWeight;
+        }
+        final Long mainWeight = this.main.remove(sessionId);
+        if (mainWeight != null) {
+            this.totalWeight -= mainWeight;
+        }
+    }
+
+    private List<String> evict() {
+
+        final List<String> candidates = new ArrayList<>();
+        final Iterator<Map.Entry<String, Long>> windowEntries = this.window.entrySet().iterator();
+        while (this.windowWeight > this.maxWindowWeight && windowEntries.hasNext()) {
+            final Map.Entry<String, Long> entry = windowEntries.next();
+            windowEntries.remove();
+            this.windowWeight -= entry.getValue();
+            this.main.put(entry.getKey(), entry.getValue());
+            candidates.add(entry.getKey());
+        }
+
+        final List<String> evicted = new ArrayList<>();
+        while (this.totalWeight > this.maxWeight) {
+            final String candidate = candidates.isEmpty() ? null : candidates.get(candidates.size() - 1);
+            if (candidate != null && !this.evictable.test(candidate)) {
+                // a session in use is admitted regardless of its frequency
+                candidates.remove(candidates.size() - 1);
+                continue;
+            }
+            final String victim = findVictim(candidates);
+            final String evict;
+            if (victim == null) {
+                evict = candidate;
+            } else if (candidate == null) {
+                evict = victim;
+            } else {
+                evict = this.sketch.frequency(candidate) > this.sketch.frequency(victim) ? victim : candidate;
+            }
+            if (evict == null) {
+                break;
+            }
+            candidates.remove(evict);
+            this.totalWeight -= this.main.remove(evict);
+            this.evictions.incrementAndGet();
+            evicted.add(evict);
+        }
+        return evicted;
+    }
+
+    /**
+     * Finds the least recently used session of the main area that may be evicted, not considering the given candidates.
+     */
+    private String findVictim(final List<String> candidates) {
+
+        for (final String sessionId : this.main.keySet()) {
+            if (!candidates.contains(sessionId) && this.evictable.test(sessionId)) {
+                return sessionId;
+            }
+        }
+        return null;
+    }
+
+    long getHits() {
+
+        return this.hits.get();
+    }
+
+    long getMisses() {
+
+        return this.misses.get();
+    }
+
+    long getEvictions() {
+
+        return this.evictions.get();
+    }
+
+    synchronized long getWeight() {
+
+        return this.totalWeight;
+    }
+
+    /**
+     * A count-min sketch with four rows of counters saturating at 15, which are halved once the number of increments reaches ten times the number
+     * of counters.
+     */
+    private static final class FrequencySketch {
+
+        private static final int WIDTH = 1 << 14;
+        private static final int MAX_COUNT = 15;
+        private static final int[] SEEDS = { 0x97cb3127, 0x9e3779b9, 0xc2b2ae35, 0x85ebca6b };
+
+        private final byte[] counters = new byte[WIDTH];
+        private final int sampleSize = 10 * WIDTH;
+        private int additions;
+
+        private void increment(final String key) {
+
+            final int hash = key.hashCode();
+            for (final int seed : SEEDS) {
+                final int index = indexOf(hash, seed);
+                if (this.counters[index] < MAX_COUNT) {
+                    this.counters[index]++;
+                }
+            }
+            if (++this.additions >= this.sampleSize) {
+                reset();
+            }
+        }
+
+        private int frequency(final String key) {
+
+            final int hash = key.hashCode();
+            int frequency = MAX_COUNT;
+            for (final int seed : SEEDS) {
+                frequency = Math.min(frequency, this.counters[indexOf(hash, seed)]);
+            }
+            return frequency;
+        }
+
+        private void reset() {
+
+            for (int i = 0; i < this.counters.length; i++) {
+                this.counters[i] >>= 1;
+            }
+            this.additions /= 2;
+        }
+
+        private static int indexOf(final int hash, final int seed) {
+
+            int index = (hash + seed) * seed;
+            index += index >>> 16;
+            return index & (WIDTH - 1);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.acme.servlet.redisextension;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Replaces objects while a value is serialized and resolves them again while it is deserialized, e.g. to store parts of an object graph in
+ * separate values. A substitution is active for the current thread while {@link #apply(ObjectSubstitution, Action)} runs, and is applied by the
+ * object streams of the built-in {@link SessionAttributeSerializer}s. Custom serializers ignore it.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+abstract class ObjectSubstitution {
+
+    private static final ThreadLocal<ObjectSubstitution> CURRENT = new ThreadLocal<>();
+
+    /**
+     * An action serializing or deserializing a value.
+     */
+    interface Action<T> {
+
+        T run() throws IOException, ClassNotFoundException;
+    }
+
+    /**
+     * Runs an action with the given substitution active on the current thread. Substitutions may be nested, the previous one is active again
+     * afterwards.
+     */
+    static <T> T apply(final ObjectSubstitution substitution, final Action<T> action) throws IOException, ClassNotFoundException {
+
+        final ObjectSubstitution previous = CURRENT.get();
+        CURRENT.set(substitution);
+        try {
+            return action.run();
+        } finally {
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+        }
+    }
+
+    /**
+     * Replaces an object written to the stream.
+     */
+    protected Object replace(final Object object) throws IOException {
+
+        return object;
+    }
+
+    /**
+     * Resolves an object read from the stream.
+     */
+    protected Object resolve(final Object object) throws IOException {
+
+        return object;
+    }
+
+    /**
+     * An {@link ObjectOutputStream} applying the substitution active when it was created.
+     */
+    static class SubstitutingObjectOutputStream extends ObjectOutputStream {
+
+        private final ObjectSubstitution substitution = CURRENT.get();
+
+        SubstitutingObjectOutputStream(final OutputStream outputStream) throws IOException {
+
+            super(outputStream);
+            enableReplaceObject(this.substitution != null);
+        }
+
+        @Override
+        protected Object replaceObject(final Object object) throws IOException {
+
+            return this.substitution.replace(object);
+        }
+    }
+
+    /**
+     * An {@link ObjectInputStream} applying the substitution active when it was created.
+     */
+    static class SubstitutingObjectInputStream extends ObjectInputStream {
+
+        private final ObjectSubstitution substitution = CURRENT.get();
+
+        SubstitutingObjectInputStream(final InputStream inputStream) throws IOException {
+
+            super(inputStream);
+            enableResolveObject(this.substitution != null);
+        }
+
+        @Override
+        protected Object resolveObject(final Object object) throws IOException {
+
+            return this.substitution.resolve(object);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.acme.servlet.redisextension;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The {@link AttributeFingerprint fingerprints} of the fields of a session hash as this node has loaded or written them, used to skip writing
+ * fields that did not change.
+ *
+ * The fingerprints of written fields are recorded as soon as the write is queued, not once it has been applied, so a change that is reverted while
+ * the write is still queued is detected and written again. If a queued write is lost, all fingerprints are cleared, so the next write of the session
+ * writes all fields.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class PersistedFingerprints {
+
+    private final Map<String, AttributeFingerprint> fingerprints = new ConcurrentHashMap<>();
+
+    /**
+     * Records the fingerprint of a field loaded from Redis.
+     */
+    void loaded(final String field, final AttributeFingerprint fingerprint) {
+
+        this.fingerprints.put(field, fingerprint);
+    }
+
+    /**
+     * Records a write of the session, before it is sent to Redis.
+     *
+     * @param written
+     *            the fingerprints of the written fields
+     * @param removed
+     *            the removed fields
+     */
+    void queued(final Map<String, AttributeFingerprint> written, final Collection<String> removed) {
+
+        this.fingerprints.putAll(written);
+        removed.forEach(this.fingerprints::remove);
+    }
+
+    void remove(final String field) {
+
+        this.fingerprints.remove(field);
+    }
+
+    /**
+     * Checks if a field has been loaded or written with the given fingerprint, so it does not have to be written again.
+     */
+    boolean matches(final String field, final AttributeFingerprint fingerprint) {
+
+        return fingerprint.equals(this.fingerprints.get(field));
+    }
+
+    boolean contains(final String field) {
+
+        return this.fingerprints.containsKey(field);
+    }
+
+    /**
+     * Gets the fields that have been loaded or written.
+     */
+    Set<String> fields() {
+
+        return this.fingerprints.keySet();
+    }
+
+    /**
+     * Forgets all fingerprints, e.g. because a write has been lost or the session has been invalidated.
+     */
+    void clear() {
+
+        this.fingerprints.clear();
+    }
+}
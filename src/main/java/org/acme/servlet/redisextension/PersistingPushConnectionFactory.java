@@ -0,0 +1,63 @@
+package org.acme.servlet.redisextension;
+
+import javax.servlet.http.HttpSession;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.server.VaadinSession;
+import com.vaadin.flow.server.WrappedHttpSession;
+import com.vaadin.flow.server.WrappedSession;
+import com.vaadin.flow.server.communication.AtmospherePushConnection;
+import com.vaadin.flow.server.communication.PushConnection;
+import com.vaadin.flow.server.communication.PushConnectionFactory;
+
+import io.undertow.servlet.spec.HttpSessionImpl;
+
+/**
+ * Creates the push connections of the UIs, which notify the {@link RedisSessionManager} of every message pushed to a UI. Changes made by
+ * <CODE>UI.access</CODE> commands outside of requests, e.g. by background threads updating a UI over a WebSocket, never pass the
+ * {@link QuarkusRedisFilter}, so the session manager writes the VaadinSession of such UIs once the push debounce window is over.
+ *
+ * Vaadin loads this factory from <CODE>META-INF/services</CODE> when a UI is bootstrapped. Only one push connection factory may be registered.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+public class PersistingPushConnectionFactory implements PushConnectionFactory {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public PushConnection apply(final UI ui) {
+
+        return new PersistingPushConnection(ui);
+    }
+
+    /**
+     * An {@link AtmospherePushConnection} notifying the session manager after each pushed message. UIs only push while holding the lock of their
+     * VaadinSession, and only if an access has changed them.
+     */
+    private static final class PersistingPushConnection extends AtmospherePushConnection {
+
+        private static final long serialVersionUID = 1L;
+
+        private PersistingPushConnection(final UI ui) {
+
+            super(ui);
+        }
+
+        @Override
+        public void push(final boolean async) {
+
+            super.push(async);
+
+            final VaadinSession vaadinSession = getUI().getSession();
+            final WrappedSession wrappedSession = vaadinSession == null ? null : vaadinSession.getSession();
+            if (wrappedSession instanceof WrappedHttpSession) {
+                final HttpSession httpSession = ((WrappedHttpSession) wrappedSession).getHttpSession();
+                if (httpSession instanceof HttpSessionImpl) {
+                    RedisSessionManager.pushed(((HttpSessionImpl) httpSession).getSession(), vaadinSession, getUI().getUIId());
+                }
+            }
+        }
+    }
+}
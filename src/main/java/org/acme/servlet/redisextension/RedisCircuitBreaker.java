@@ -0,0 +1,81 @@
+package org.acme.servlet.redisextension;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stops calling Redis while it fails or responds slowly. Calls failing or taking longer than the slow call time are counted, and once the failure
+ * threshold is reached in a row the breaker opens and calls are rejected right away. After the open time, a single probe call is let through
+ * (half-open). If it succeeds, the breaker closes again and the recovery action runs, otherwise it stays open for another open time.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class RedisCircuitBreaker {
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long slowCallNanos;
+    private final long openNanos;
+    private final Runnable onRecovery;
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long openedAt;
+
+    /**
+     * @param onRecovery
+     *            runs on the thread of the successful probe call once the breaker has closed again
+     */
+    RedisCircuitBreaker(final int failureThreshold, final long slowCallMillis, final long openMillis, final Runnable onRecovery) {
+
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.slowCallNanos = slowCallMillis * 1_000_000L;
+        this.openNanos = openMillis * 1_000_000L;
+        this.onRecovery = onRecovery;
+    }
+
+    /**
+     * Checks if a call may be sent to Redis. While the breaker is open, only the first call after the open time is allowed, as probe.
+     */
+    boolean allowRequest() {
+
+        final State current = this.state.get();
+        if (current == State.CLOSED) {
+            return true;
+        }
+        return current == State.OPEN && System.nanoTime() - this.openedAt >= this.openNanos && this.state.compareAndSet(State.OPEN, State.HALF_OPEN);
+    }
+
+    /**
+     * Records a call that has completed, a slow call counts as failure.
+     */
+    void onSuccess(final long durationNanos) {
+
+        if (durationNanos > this.slowCallNanos) {
+            onFailure();
+            return;
+        }
+        this.consecutiveFailures.set(0);
+        if (this.state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+            this.onRecovery.run();
+        }
+    }
+
+    void onFailure() {
+
+        if (this.state.get() == State.HALF_OPEN || this.consecutiveFailures.incrementAndGet() >= this.failureThreshold) {
+            this.openedAt = System.nanoTime();
+            this.state.set(State.OPEN);
+        }
+    }
+
+    State getState() {
+
+        return this.state.get();
+    }
+}
@@ -4,6 +4,12 @@ import static java.lang.Boolean.parseBoolean;
 import static java.lang.Integer.parseInt;
 import static java.lang.System.getenv;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
 import javax.servlet.ServletContext;
 
 import org.slf4j.Logger;
@@ -23,7 +29,36 @@ public class RedisServletExtension implements ServletExtension {
     public static final String INVALID_REDIS_URI_ERROR_MESSAGE = "Invalid Redis URI, check value of property: quarkus.redis.hosts";
 
     private static final String MAX_IN_MEMORY_SESSIONS_KEY = "ch.inacta.vaadin.redisCache.inMemory.maxSessions";
+    private static final String MAX_IN_MEMORY_BYTES_KEY = "ch.inacta.vaadin.redisCache.inMemory.maxBytes";
+    private static final String SPILL_FILE_KEY = "ch.inacta.vaadin.redisCache.spill.file";
+    private static final String SPILL_MAX_BYTES_KEY = "ch.inacta.vaadin.redisCache.spill.maxBytes";
+    private static final String OWNERSHIP_KEY = "ch.inacta.vaadin.redisCache.ownership";
+    private static final String LEASE_TIME_KEY = "ch.inacta.vaadin.redisCache.ownership.leaseSeconds";
+    private static final String CIRCUIT_BREAKER_KEY = "ch.inacta.vaadin.redisCache.circuitBreaker";
+    private static final String CIRCUIT_BREAKER_FAILURE_THRESHOLD_KEY = "ch.inacta.vaadin.redisCache.circuitBreaker.failureThreshold";
+    private static final String CIRCUIT_BREAKER_SLOW_CALL_TIME_KEY = "ch.inacta.vaadin.redisCache.circuitBreaker.slowCallMillis";
+    private static final String CIRCUIT_BREAKER_CALL_TIMEOUT_KEY = "ch.inacta.vaadin.redisCache.circuitBreaker.callTimeoutMillis";
+    private static final String CIRCUIT_BREAKER_OPEN_TIME_KEY = "ch.inacta.vaadin.redisCache.circuitBreaker.openMillis";
+    private static final String SHARD_HOSTS_KEY = "ch.inacta.vaadin.redisCache.shards.hosts";
+    private static final String REPLICA_HOSTS_KEY = "ch.inacta.vaadin.redisCache.replicas.hosts";
+    private static final String REPLICA_READ_WINDOW_KEY = "ch.inacta.vaadin.redisCache.replicas.readYourWritesMillis";
+    private static final String PUSH_DEBOUNCE_WINDOW_KEY = "ch.inacta.vaadin.redisCache.push.debounceMillis";
+    private static final String VAADIN_SESSION_SHARDING_KEY = "ch.inacta.vaadin.redisCache.vaadinSession.sharding";
     private static final String EXPIRE_OLDEST_UNUSED_IN_MEMORY_SESSION_ON_MAX_KEY = "ch.inacta.vaadin.redisCache.inMemory.expireOldestSessionOnMax";
+    private static final String WRITE_BEHIND_KEY = "ch.inacta.vaadin.redisCache.writeBehind";
+    private static final String SERIALIZER_KEY = "ch.inacta.vaadin.redisCache.serializer";
+    private static final String COMPACT_SERIALIZER_CLASSES_KEY = "ch.inacta.vaadin.redisCache.serializer.compact.classes";
+    private static final String COMPRESSION_THRESHOLD_KEY = "ch.inacta.vaadin.redisCache.compression.threshold";
+    private static final String INVALIDATION_KEY = "ch.inacta.vaadin.redisCache.invalidation";
+    private static final String ASYNC_WRITES_KEY = "ch.inacta.vaadin.redisCache.async";
+    private static final String ASYNC_QUEUE_CAPACITY_KEY = "ch.inacta.vaadin.redisCache.async.queueCapacity";
+    private static final String ASYNC_WRITERS_KEY = "ch.inacta.vaadin.redisCache.async.writers";
+    private static final String ASYNC_OVERFLOW_POLICY_KEY = "ch.inacta.vaadin.redisCache.async.overflowPolicy";
+    private static final String TTL_REFRESH_FRACTION_KEY = "ch.inacta.vaadin.redisCache.ttlRefreshFraction";
+    private static final String COLD_ATTRIBUTE_COMPRESSION_KEY = "ch.inacta.vaadin.redisCache.coldAttributes.compression";
+    private static final String PASSIVATION_IDLE_TIME_KEY = "ch.inacta.vaadin.redisCache.passivation.idleSeconds";
+    private static final String JDK_SERIALIZER = "jdk";
+    private static final String COMPACT_SERIALIZER = "compact";
 
     private static final Logger LOG = LoggerFactory.getLogger(RedisServletExtension.class);
 
@@ -34,7 +69,94 @@ public class RedisServletExtension implements ServletExtension {
         final boolean expireOldestSessionOnMax = getenv().containsKey(EXPIRE_OLDEST_UNUSED_IN_MEMORY_SESSION_ON_MAX_KEY)
                 && parseBoolean(getenv(EXPIRE_OLDEST_UNUSED_IN_MEMORY_SESSION_ON_MAX_KEY));
 
-        deploymentInfo.setSessionManagerFactory(new RedisSessionManagerFactory(maxSessions, expireOldestSessionOnMax));
+        final JdkSessionAttributeSerializer jdkSerializer = new JdkSessionAttributeSerializer();
+        final CompactSessionAttributeSerializer compactSerializer = new CompactSessionAttributeSerializer(getList(COMPACT_SERIALIZER_CLASSES_KEY));
+
+        final RedisSessionConfig redisSessionConfig = new RedisSessionConfig()
+                .setWriteBehind(getenv().containsKey(WRITE_BEHIND_KEY) && parseBoolean(getenv(WRITE_BEHIND_KEY)))
+                .setSerializer(createSerializer(getenv().getOrDefault(SERIALIZER_KEY, JDK_SERIALIZER), jdkSerializer, compactSerializer))
+                .setReaders(Arrays.asList(jdkSerializer, compactSerializer))
+                .setShardHosts(getList(SHARD_HOSTS_KEY))
+                .setReplicaHosts(getList(REPLICA_HOSTS_KEY))
+                .setCompressionThreshold(getenv().containsKey(COMPRESSION_THRESHOLD_KEY) ? parseInt(getenv(COMPRESSION_THRESHOLD_KEY)) : -1)
+                .setInvalidation(getenv().containsKey(INVALIDATION_KEY) && parseBoolean(getenv(INVALIDATION_KEY)))
+                .setAsyncWrites(getenv().containsKey(ASYNC_WRITES_KEY) && parseBoolean(getenv(ASYNC_WRITES_KEY)))
+                .setCircuitBreaker(getenv().containsKey(CIRCUIT_BREAKER_KEY) && parseBoolean(getenv(CIRCUIT_BREAKER_KEY)))
+                .setVaadinSessionSharding(getenv().containsKey(VAADIN_SESSION_SHARDING_KEY) && parseBoolean(getenv(VAADIN_SESSION_SHARDING_KEY)))
+                .setOwnership(getenv().containsKey(OWNERSHIP_KEY) && parseBoolean(getenv(OWNERSHIP_KEY)))
+                .setColdAttributeCompression(getenv().containsKey(COLD_ATTRIBUTE_COMPRESSION_KEY) && parseBoolean(getenv(COLD_ATTRIBUTE_COMPRESSION_KEY)));
+        if (getenv().containsKey(MAX_IN_MEMORY_BYTES_KEY)) {
+            redisSessionConfig.setMaxInMemoryBytes(Long.parseLong(getenv(MAX_IN_MEMORY_BYTES_KEY)));
+        }
+        if (getenv().containsKey(PUSH_DEBOUNCE_WINDOW_KEY)) {
+            redisSessionConfig.setPushDebounceWindow(Long.parseLong(getenv(PUSH_DEBOUNCE_WINDOW_KEY)));
+        }
+        if (getenv().containsKey(REPLICA_READ_WINDOW_KEY)) {
+            redisSessionConfig.setReplicaReadWindow(Long.parseLong(getenv(REPLICA_READ_WINDOW_KEY)));
+        }
+        if (getenv().containsKey(CIRCUIT_BREAKER_FAILURE_THRESHOLD_KEY)) {
+            redisSessionConfig.setCircuitBreakerFailureThreshold(parseInt(getenv(CIRCUIT_BREAKER_FAILURE_THRESHOLD_KEY)));
+        }
+        if (getenv().containsKey(CIRCUIT_BREAKER_SLOW_CALL_TIME_KEY)) {
+            redisSessionConfig.setCircuitBreakerSlowCallTime(Long.parseLong(getenv(CIRCUIT_BREAKER_SLOW_CALL_TIME_KEY)));
+        }
+        if (getenv().containsKey(CIRCUIT_BREAKER_CALL_TIMEOUT_KEY)) {
+            redisSessionConfig.setCircuitBreakerCallTimeout(Long.parseLong(getenv(CIRCUIT_BREAKER_CALL_TIMEOUT_KEY)));
+        }
+        if (getenv().containsKey(CIRCUIT_BREAKER_OPEN_TIME_KEY)) {
+            redisSessionConfig.setCircuitBreakerOpenTime(Long.parseLong(getenv(CIRCUIT_BREAKER_OPEN_TIME_KEY)));
+        }
+        if (getenv().containsKey(LEASE_TIME_KEY)) {
+            redisSessionConfig.setLeaseTime(parseInt(getenv(LEASE_TIME_KEY)));
+        }
+        if (getenv().containsKey(SPILL_FILE_KEY)) {
+            redisSessionConfig.setSpillFile(getenv(SPILL_FILE_KEY));
+        }
+        if (getenv().containsKey(SPILL_MAX_BYTES_KEY)) {
+            redisSessionConfig.setSpillMaxBytes(Long.parseLong(getenv(SPILL_MAX_BYTES_KEY)));
+        }
+        if (getenv().containsKey(PASSIVATION_IDLE_TIME_KEY)) {
+            redisSessionConfig.setPassivationIdleTime(parseInt(getenv(PASSIVATION_IDLE_TIME_KEY)));
+        }
+        if (getenv().containsKey(TTL_REFRESH_FRACTION_KEY)) {
+            redisSessionConfig.setTtlRefreshFraction(Double.parseDouble(getenv(TTL_REFRESH_FRACTION_KEY)));
+        }
+        if (getenv().containsKey(ASYNC_QUEUE_CAPACITY_KEY)) {
+            redisSessionConfig.setAsyncQueueCapacity(parseInt(getenv(ASYNC_QUEUE_CAPACITY_KEY)));
+        }
+        if (getenv().containsKey(ASYNC_WRITERS_KEY)) {
+            redisSessionConfig.setAsyncWriters(parseInt(getenv(ASYNC_WRITERS_KEY)));
+        }
+        if (getenv().containsKey(ASYNC_OVERFLOW_POLICY_KEY)) {
+            redisSessionConfig.setAsyncOverflowPolicy(AsyncOverflowPolicy.valueOf(getenv(ASYNC_OVERFLOW_POLICY_KEY).trim().toUpperCase(Locale.ROOT)));
+        }
+
+        deploymentInfo.setSessionManagerFactory(new RedisSessionManagerFactory(maxSessions, expireOldestSessionOnMax, redisSessionConfig));
+    }
+
+    private static SessionAttributeSerializer createSerializer(final String serializer, final JdkSessionAttributeSerializer jdkSerializer,
+            final CompactSessionAttributeSerializer compactSerializer) {
+
+        if (JDK_SERIALIZER.equals(serializer)) {
+            return jdkSerializer;
+        }
+        if (COMPACT_SERIALIZER.equals(serializer)) {
+            return compactSerializer;
+        }
+        try {
+            return (SessionAttributeSerializer) Class.forName(serializer).getDeclaredConstructor().newInstance();
+        } catch (final ReflectiveOperationException | ClassCastException e) {
+            LOG.error("Unable to create session attribute serializer {}, falling back to Java serialization", serializer, e);
+            return jdkSerializer;
+        }
+    }
+
+    private static List<String> getList(final String key) {
+
+        if (!getenv().containsKey(key)) {
+            return Collections.emptyList();
+        }
+        return Arrays.stream(getenv(key).split(",")).map(String::trim).filter(value -> !value.isEmpty()).collect(Collectors.toList());
     }
 
 }
@@ -0,0 +1,675 @@
+package org.acme.servlet.redisextension;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds the Redis specific settings of the {@link RedisSessionManager}. The values are read from the environment by the
+ * {@link RedisServletExtension}.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+public class RedisSessionConfig {
+
+    private boolean writeBehind;
+    private SessionAttributeSerializer serializer = new JdkSessionAttributeSerializer();
+    private List<SessionAttributeSerializer> readers = new ArrayList<>();
+    private int compressionThreshold = -1;
+    private boolean invalidation;
+    private boolean asyncWrites;
+    private int asyncQueueCapacity = 10000;
+    private int asyncWriters = 2;
+    private AsyncOverflowPolicy asyncOverflowPolicy = AsyncOverflowPolicy.BLOCK;
+    private double ttlRefreshFraction = 0.1;
+    private boolean coldAttributeCompression;
+    private boolean ownership;
+    private int leaseTime = 30;
+    private boolean circuitBreaker;
+    private boolean vaadinSessionSharding;
+    private int circuitBreakerFailureThreshold = 5;
+    private long circuitBreakerSlowCallTime = 500;
+    private long circuitBreakerCallTimeout = 1000;
+    private long circuitBreakerOpenTime = 5000;
+    private int passivationIdleTime = -1;
+    private long maxInMemoryBytes = -1;
+    private String spillFile;
+    private long spillMaxBytes = 64L * 1024 * 1024;
+    private List<String> shardHosts = new ArrayList<>();
+    private List<String> replicaHosts = new ArrayList<>();
+    private long replicaReadWindow = 1000;
+    private long pushDebounceWindow = -1;
+
+    /**
+     * Gets the value of the writeBehind property.
+     *
+     * @return <CODE>true</CODE> if attribute changes are staged and written to Redis once at the end of the request
+     */
+    public boolean isWriteBehind() {
+
+        return this.writeBehind;
+    }
+
+    /**
+     * Sets the value of the writeBehind property
+     *
+     * @param writeBehind
+     *            if <CODE>true</CODE>, attribute changes are staged per session and flushed in a single pipelined batch when the request is done
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setWriteBehind(final boolean writeBehind) {
+
+        this.writeBehind = writeBehind;
+        return this;
+    }
+
+    /**
+     * Gets the value of the serializer property.
+     *
+     * @return the {@link SessionAttributeSerializer} used to write session attributes
+     */
+    public SessionAttributeSerializer getSerializer() {
+
+        return this.serializer;
+    }
+
+    /**
+     * Sets the value of the serializer property
+     *
+     * @param serializer
+     *            the {@link SessionAttributeSerializer} used to write session attributes
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setSerializer(final SessionAttributeSerializer serializer) {
+
+        this.serializer = serializer;
+        return this;
+    }
+
+    /**
+     * Gets the value of the readers property.
+     *
+     * @return the serializers used to read values written in other formats than the one of the {@link #getSerializer() serializer}
+     */
+    public List<SessionAttributeSerializer> getReaders() {
+
+        return this.readers;
+    }
+
+    /**
+     * Sets the value of the readers property
+     *
+     * @param readers
+     *            the serializers used to read values written in other formats than the one of the {@link #getSerializer() serializer}
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setReaders(final List<SessionAttributeSerializer> readers) {
+
+        this.readers = readers;
+        return this;
+    }
+
+    /**
+     * Gets the value of the compressionThreshold property.
+     *
+     * @return the size in bytes above which serialized attributes are compressed, a negative value if compression is disabled
+     */
+    public int getCompressionThreshold() {
+
+        return this.compressionThreshold;
+    }
+
+    /**
+     * Sets the value of the compressionThreshold property
+     *
+     * @param compressionThreshold
+     *            the size in bytes above which serialized attributes are compressed, a negative value disables compression
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setCompressionThreshold(final int compressionThreshold) {
+
+        this.compressionThreshold = compressionThreshold;
+        return this;
+    }
+
+    /**
+     * Gets the value of the invalidation property.
+     *
+     * @return <CODE>true</CODE> if changes are published to the other nodes, which then reload the changed attributes from Redis
+     */
+    public boolean isInvalidation() {
+
+        return this.invalidation;
+    }
+
+    /**
+     * Sets the value of the invalidation property
+     *
+     * @param invalidation
+     *            if <CODE>true</CODE>, written attributes are published on a channel per deployment and other nodes mark their in-memory copies stale
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setInvalidation(final boolean invalidation) {
+
+        this.invalidation = invalidation;
+        return this;
+    }
+
+    /**
+     * Gets the value of the asyncWrites property.
+     *
+     * @return <CODE>true</CODE> if writes and timeout bumps are queued and sent to Redis by writer threads
+     */
+    public boolean isAsyncWrites() {
+
+        return this.asyncWrites;
+    }
+
+    /**
+     * Sets the value of the asyncWrites property
+     *
+     * @param asyncWrites
+     *            if <CODE>true</CODE>, writes and timeout bumps are queued and sent to Redis by writer threads instead of the request threads
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setAsyncWrites(final boolean asyncWrites) {
+
+        this.asyncWrites = asyncWrites;
+        return this;
+    }
+
+    /**
+     * Gets the value of the asyncQueueCapacity property.
+     *
+     * @return the maximum number of queued writes
+     */
+    public int getAsyncQueueCapacity() {
+
+        return this.asyncQueueCapacity;
+    }
+
+    /**
+     * Sets the value of the asyncQueueCapacity property
+     *
+     * @param asyncQueueCapacity
+     *            the maximum number of queued writes, shared evenly between the writer threads
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setAsyncQueueCapacity(final int asyncQueueCapacity) {
+
+        this.asyncQueueCapacity = asyncQueueCapacity;
+        return this;
+    }
+
+    /**
+     * Gets the value of the asyncWriters property.
+     *
+     * @return the number of threads sending the queued writes
+     */
+    public int getAsyncWriters() {
+
+        return this.asyncWriters;
+    }
+
+    /**
+     * Sets the value of the asyncWriters property
+     *
+     * @param asyncWriters
+     *            the number of threads sending the queued writes
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setAsyncWriters(final int asyncWriters) {
+
+        this.asyncWriters = asyncWriters;
+        return this;
+    }
+
+    /**
+     * Gets the value of the asyncOverflowPolicy property.
+     *
+     * @return the {@link AsyncOverflowPolicy} applied if the write queue is full
+     */
+    public AsyncOverflowPolicy getAsyncOverflowPolicy() {
+
+        return this.asyncOverflowPolicy;
+    }
+
+    /**
+     * Sets the value of the asyncOverflowPolicy property
+     *
+     * @param asyncOverflowPolicy
+     *            the {@link AsyncOverflowPolicy} applied if the write queue is full
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setAsyncOverflowPolicy(final AsyncOverflowPolicy asyncOverflowPolicy) {
+
+        this.asyncOverflowPolicy = asyncOverflowPolicy;
+        return this;
+    }
+
+    /**
+     * Gets the value of the ttlRefreshFraction property.
+     *
+     * @return the fraction of the max inactive interval within which the expiry of a session is not refreshed again
+     */
+    public double getTtlRefreshFraction() {
+
+        return this.ttlRefreshFraction;
+    }
+
+    /**
+     * Sets the value of the ttlRefreshFraction property
+     *
+     * @param ttlRefreshFraction
+     *            the fraction of the max inactive interval within which the expiry of a session is not refreshed again, <CODE>0</CODE> refreshes it
+     *            once per request
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setTtlRefreshFraction(final double ttlRefreshFraction) {
+
+        this.ttlRefreshFraction = ttlRefreshFraction;
+        return this;
+    }
+
+    /**
+     * Gets the value of the coldAttributeCompression property.
+     *
+     * @return <CODE>true</CODE> if cold attributes, which are loaded from Redis but not read yet, are kept compressed in memory
+     */
+    public boolean isColdAttributeCompression() {
+
+        return this.coldAttributeCompression;
+    }
+
+    /**
+     * Sets the value of the coldAttributeCompression property
+     *
+     * @param coldAttributeCompression
+     *            if <CODE>true</CODE>, cold attributes, which are loaded from Redis but not read yet, are kept compressed in memory
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setColdAttributeCompression(final boolean coldAttributeCompression) {
+
+        this.coldAttributeCompression = coldAttributeCompression;
+        return this;
+    }
+
+    /**
+     * Gets the value of the passivationIdleTime property.
+     *
+     * @return the time in seconds after which the in-memory copy of an idle session is dropped, a negative value if passivation is disabled
+     */
+    public int getPassivationIdleTime() {
+
+        return this.passivationIdleTime;
+    }
+
+    /**
+     * Sets the value of the passivationIdleTime property
+     *
+     * @param passivationIdleTime
+     *            the time in seconds after which the in-memory copy of an idle session is dropped while the session is kept in Redis, a negative value
+     *            disables passivation
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setPassivationIdleTime(final int passivationIdleTime) {
+
+        this.passivationIdleTime = passivationIdleTime;
+        return this;
+    }
+
+    /**
+     * Gets the value of the maxInMemoryBytes property.
+     *
+     * @return the budget in bytes for the serialized size of the sessions kept in memory, a negative value if it is unbounded
+     */
+    public long getMaxInMemoryBytes() {
+
+        return this.maxInMemoryBytes;
+    }
+
+    /**
+     * Sets the value of the maxInMemoryBytes property
+     *
+     * @param maxInMemoryBytes
+     *            the budget in bytes for the serialized size of the sessions kept in memory, the in-memory copies of rarely used sessions are dropped
+     *            to stay within it, a negative value disables the budget
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setMaxInMemoryBytes(final long maxInMemoryBytes) {
+
+        this.maxInMemoryBytes = maxInMemoryBytes;
+        return this;
+    }
+
+    /**
+     * Gets the value of the spillFile property.
+     *
+     * @return the path of the memory-mapped file keeping the sessions dropped from memory, <CODE>null</CODE> if they are not kept locally
+     */
+    public String getSpillFile() {
+
+        return this.spillFile;
+    }
+
+    /**
+     * Sets the value of the spillFile property
+     *
+     * @param spillFile
+     *            the path of the memory-mapped file keeping the serialized sessions dropped from memory, so they are restored without loading them
+     *            from Redis, <CODE>null</CODE> to disable it
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setSpillFile(final String spillFile) {
+
+        this.spillFile = spillFile;
+        return this;
+    }
+
+    /**
+     * Gets the value of the spillMaxBytes property.
+     *
+     * @return the size in bytes of the spill file
+     */
+    public long getSpillMaxBytes() {
+
+        return this.spillMaxBytes;
+    }
+
+    /**
+     * Sets the value of the spillMaxBytes property
+     *
+     * @param spillMaxBytes
+     *            the size in bytes of the spill file, at most 2 GiB, the oldest sessions are dropped from it once it is full
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setSpillMaxBytes(final long spillMaxBytes) {
+
+        this.spillMaxBytes = spillMaxBytes;
+        return this;
+    }
+
+    /**
+     * Gets the value of the ownership property.
+     *
+     * @return <CODE>true</CODE> if the node serving a session holds a lease on it and trusts its in-memory copy while it does
+     */
+    public boolean isOwnership() {
+
+        return this.ownership;
+    }
+
+    /**
+     * Sets the value of the ownership property
+     *
+     * @param ownership
+     *            if <CODE>true</CODE>, the node serving a session takes a renewable lease on it and skips the version checks while it holds the
+     *            lease, which suits deployments with sticky sessions. Requires invalidation, otherwise the version checks are kept
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setOwnership(final boolean ownership) {
+
+        this.ownership = ownership;
+        return this;
+    }
+
+    /**
+     * Gets the value of the leaseTime property.
+     *
+     * @return the time in seconds an ownership lease is valid, it is renewed after half of it
+     */
+    public int getLeaseTime() {
+
+        return this.leaseTime;
+    }
+
+    /**
+     * Sets the value of the leaseTime property
+     *
+     * @param leaseTime
+     *            the time in seconds an ownership lease is valid, it is renewed by the first request after half of it
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setLeaseTime(final int leaseTime) {
+
+        this.leaseTime = leaseTime;
+        return this;
+    }
+
+    /**
+     * Gets the value of the circuitBreaker property.
+     *
+     * @return <CODE>true</CODE> if Redis calls are guarded by a {@link RedisCircuitBreaker}
+     */
+    public boolean isCircuitBreaker() {
+
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Sets the value of the circuitBreaker property
+     *
+     * @param circuitBreaker
+     *            if <CODE>true</CODE>, Redis calls are guarded by a circuit breaker, sessions are served from memory while it is open and the
+     *            sessions changed meanwhile are written to Redis once it has recovered
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setCircuitBreaker(final boolean circuitBreaker) {
+
+        this.circuitBreaker = circuitBreaker;
+        return this;
+    }
+
+    /**
+     * Gets the value of the circuitBreakerFailureThreshold property.
+     *
+     * @return the number of failed or slow Redis calls in a row opening the circuit breaker
+     */
+    public int getCircuitBreakerFailureThreshold() {
+
+        return this.circuitBreakerFailureThreshold;
+    }
+
+    /**
+     * Sets the value of the circuitBreakerFailureThreshold property
+     *
+     * @param circuitBreakerFailureThreshold
+     *            the number of failed or slow Redis calls in a row opening the circuit breaker
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setCircuitBreakerFailureThreshold(final int circuitBreakerFailureThreshold) {
+
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+        return this;
+    }
+
+    /**
+     * Gets the value of the circuitBreakerSlowCallTime property.
+     *
+     * @return the time in milliseconds after which a Redis call counts as failure for the circuit breaker
+     */
+    public long getCircuitBreakerSlowCallTime() {
+
+        return this.circuitBreakerSlowCallTime;
+    }
+
+    /**
+     * Sets the value of the circuitBreakerSlowCallTime property
+     *
+     * @param circuitBreakerSlowCallTime
+     *            the time in milliseconds after which a Redis call counts as failure for the circuit breaker
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setCircuitBreakerSlowCallTime(final long circuitBreakerSlowCallTime) {
+
+        this.circuitBreakerSlowCallTime = circuitBreakerSlowCallTime;
+        return this;
+    }
+
+    /**
+     * Gets the value of the circuitBreakerCallTimeout property.
+     *
+     * @return the time in milliseconds after which a Redis call is aborted while the circuit breaker is enabled
+     */
+    public long getCircuitBreakerCallTimeout() {
+
+        return this.circuitBreakerCallTimeout;
+    }
+
+    /**
+     * Sets the value of the circuitBreakerCallTimeout property
+     *
+     * @param circuitBreakerCallTimeout
+     *            the time in milliseconds after which a Redis call is aborted while the circuit breaker is enabled, which bounds the time a request
+     *            waits for Redis if it is lower than the Redis client timeout
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setCircuitBreakerCallTimeout(final long circuitBreakerCallTimeout) {
+
+        this.circuitBreakerCallTimeout = circuitBreakerCallTimeout;
+        return this;
+    }
+
+    /**
+     * Gets the value of the circuitBreakerOpenTime property.
+     *
+     * @return the time in milliseconds the circuit breaker stays open before Redis is probed again
+     */
+    public long getCircuitBreakerOpenTime() {
+
+        return this.circuitBreakerOpenTime;
+    }
+
+    /**
+     * Sets the value of the circuitBreakerOpenTime property
+     *
+     * @param circuitBreakerOpenTime
+     *            the time in milliseconds the circuit breaker stays open before Redis is probed again
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setCircuitBreakerOpenTime(final long circuitBreakerOpenTime) {
+
+        this.circuitBreakerOpenTime = circuitBreakerOpenTime;
+        return this;
+    }
+
+    /**
+     * Gets the value of the vaadinSessionSharding property.
+     *
+     * @return <CODE>true</CODE> if VaadinSessions are written as a shell and one shard per UI
+     */
+    public boolean isVaadinSessionSharding() {
+
+        return this.vaadinSessionSharding;
+    }
+
+    /**
+     * Sets the value of the vaadinSessionSharding property
+     *
+     * @param vaadinSessionSharding
+     *            if <CODE>true</CODE>, VaadinSessions are written as a shell and one shard per UI, and only the UIs that handled a request are
+     *            written again
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setVaadinSessionSharding(final boolean vaadinSessionSharding) {
+
+        this.vaadinSessionSharding = vaadinSessionSharding;
+        return this;
+    }
+
+    /**
+     * Gets the value of the shardHosts property.
+     *
+     * @return the URIs of the standalone Redis instances the sessions are distributed across, empty if the Quarkus redis client is used
+     */
+    public List<String> getShardHosts() {
+
+        return this.shardHosts;
+    }
+
+    /**
+     * Sets the value of the shardHosts property
+     *
+     * @param shardHosts
+     *            the URIs of the standalone Redis instances the sessions are distributed across by consistent hashing of their ids, empty to store
+     *            them in the Redis of the Quarkus redis client, which may be a Redis Cluster
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setShardHosts(final List<String> shardHosts) {
+
+        this.shardHosts = shardHosts;
+        return this;
+    }
+
+    /**
+     * Gets the value of the replicaHosts property.
+     *
+     * @return the URIs of the replicas sessions are read from, empty if all reads go to the primary
+     */
+    public List<String> getReplicaHosts() {
+
+        return this.replicaHosts;
+    }
+
+    /**
+     * Sets the value of the replicaHosts property
+     *
+     * @param replicaHosts
+     *            the URIs of the replicas of the standalone Redis sessions are hydrated and read from, empty to send all reads to the primary.
+     *            Replicas are ignored if the sessions are stored in a Redis Cluster or in several shards
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setReplicaHosts(final List<String> replicaHosts) {
+
+        this.replicaHosts = replicaHosts;
+        return this;
+    }
+
+    /**
+     * Gets the value of the replicaReadWindow property.
+     *
+     * @return the milliseconds after a write of a session within which the session is read from the primary
+     */
+    public long getReplicaReadWindow() {
+
+        return this.replicaReadWindow;
+    }
+
+    /**
+     * Sets the value of the replicaReadWindow property
+     *
+     * @param replicaReadWindow
+     *            the milliseconds after a write of a session within which the session is read from the primary, which should exceed the usual
+     *            replication lag. Defaults to 1000
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setReplicaReadWindow(final long replicaReadWindow) {
+
+        this.replicaReadWindow = replicaReadWindow;
+        return this;
+    }
+
+    /**
+     * Gets the value of the pushDebounceWindow property.
+     *
+     * @return the milliseconds VaadinSessions changed by pushes are written after at most, -1 if they are only written by requests
+     */
+    public long getPushDebounceWindow() {
+
+        return this.pushDebounceWindow;
+    }
+
+    /**
+     * Sets the value of the pushDebounceWindow property
+     *
+     * @param pushDebounceWindow
+     *            the milliseconds after the first push to a UI within which further pushes are collected, before its VaadinSession is written
+     *            once. -1 to only write VaadinSessions at the end of requests
+     * @return the {@link RedisSessionConfig}
+     */
+    public RedisSessionConfig setPushDebounceWindow(final long pushDebounceWindow) {
+
+        this.pushDebounceWindow = pushDebounceWindow;
+        return this;
+    }
+}
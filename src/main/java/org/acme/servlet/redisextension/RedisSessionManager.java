@@ -1,36 +1,48 @@
 package org.acme.servlet.redisextension;
 
 import static java.lang.Boolean.TRUE;
-import static java.util.Base64.getDecoder;
-import static java.util.Base64.getEncoder;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.eclipse.microprofile.config.ConfigProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.urosporo.quarkus.vaadin.cdi.QuarkusVaadinServletService;
-import com.vaadin.flow.component.ComponentEventBus;
-import com.vaadin.flow.component.ComponentEventListener;
 import com.vaadin.flow.component.UI;
 import com.vaadin.flow.server.VaadinService;
 import com.vaadin.flow.server.VaadinSession;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import io.quarkus.arc.Arc;
-import io.quarkus.redis.client.RedisClient;
+import io.smallrye.mutiny.Uni;
 import io.undertow.server.HttpServerExchange;
 import io.undertow.server.session.Session;
 import io.undertow.server.session.SessionConfig;
@@ -38,35 +50,298 @@ import io.undertow.server.session.SessionCookieConfig;
 import io.undertow.server.session.SessionListener;
 import io.undertow.server.session.SessionManager;
 import io.undertow.server.session.SessionManagerStatistics;
-import io.vertx.redis.client.Response;
+import io.undertow.servlet.handlers.ServletRequestContext;
+import io.vertx.core.Vertx;
+import io.vertx.mutiny.redis.client.Command;
+import io.vertx.mutiny.redis.client.Redis;
+import io.vertx.mutiny.redis.client.Request;
+import io.vertx.mutiny.redis.client.Response;
+import io.vertx.redis.client.RedisOptions;
 
 /**
  * A SessionManager that uses Redis to store session data. Sessions are stored as a Redis Hash and sessions attributes are stored directly in fields
- * of that Hash
+ * of that Hash. Attribute values are stored as binary values written by the configured {@link SessionAttributeSerializer}. The session metadata
+ * (creation time, last access time and max inactive interval) is stored in reserved fields of the same Hash and cached by the session wrapper once
+ * the session is loaded, so the metadata getters never access Redis.
  *
  * This SessionManager is designed for high availability purposes. Therefore, sessions are stored in-memory, as well as saved in Redis. Sessions are
- * only deserialized from Redis, if a node has no existing inMemorySession.
+ * only deserialized from Redis, if a node has no existing inMemorySession. In that case the whole session hash is loaded with a single HGETALL, and
+ * only the VaadinSession is deserialized right away, the other attributes once they are read.
  *
  * The main functionality of session management is proxied to the {@link io.undertow.server.session.InMemorySessionManager}
  *
+ * The expiry of a session is refreshed at most once per request, and not at all if it has been refreshed within the configured fraction of the max
+ * inactive interval. The expiry is extended by that fraction, so sessions don't expire early.
+ *
+ * If a passivation idle time is configured, the in-memory copies of sessions idle for longer are dropped, while the sessions are kept in Redis and
+ * hydrated again by their next request. If a budget in bytes is configured for the in-memory sessions, each session is weighted by the serialized
+ * size of its attributes, and the in-memory copies of rarely used sessions are dropped the same way to stay within the budget, see
+ * {@link LocalSessionCache}. If a spill file is configured, the serialized fields of dropped sessions are kept in it by a {@link SessionSpillStore}
+ * and restored from there by the next request, as long as they are still current.
+ *
+ * If the circuit breaker is enabled, Redis calls are aborted after the call timeout and rejected while Redis fails or responds slowly, see
+ * {@link RedisCircuitBreaker}. Sessions are then served from memory, and the ids of sessions whose writes failed are remembered. Once a probe
+ * call succeeds, the current state of these sessions is written to Redis, and sessions no longer held in memory are deleted. Sessions waiting for
+ * this replay are never dropped from memory.
+ *
+ * All sessions of a deployment are registered in a sorted set, scored by their expiry time. It is used to list the sessions without scanning the
+ * whole keyspace.
+ *
+ * The keys of a session are tagged with the session id (<CODE>{sessionId}</CODE> and <CODE>{sessionId}:lease</CODE>), so they are in the same hash
+ * slot of a Redis Cluster and the scripts and batches of a session are served by a single node. A Redis Cluster is used by configuring the Quarkus
+ * redis client with <CODE>quarkus.redis.client-type=cluster</CODE>. The session index is then split into several sorted sets and updated alongside
+ * the batches of a session, as it is not in the slot of the session. Alternatively, sessions are distributed across several standalone Redis
+ * instances by consistent hashing, each holding the index of its sessions, see {@link RedisTopology}. Sessions written by previous versions under
+ * their plain id are still read and moved to the tagged key on a single endpoint.
+ *
+ * If replicas of a single standalone Redis are configured, sessions are hydrated and their attributes and metadata read from a replica, while all
+ * writes go to the primary. Reads include the version of the session, and fall back to the primary if the replica has not reached the version
+ * known to this node. Sessions written within the read-your-writes window, by this node or by another node announcing it on the
+ * {@link SessionInvalidationChannel}, are read from the primary right away, see {@link ReplicaReadGuard}.
+ *
+ * If VaadinSession sharding is enabled, every VaadinSession is written as a shell in its attribute field and one shard per UI in reserved fields,
+ * see {@link VaadinSessionShards}. Only the UIs that handled a request since the last write (identified by the <CODE>v-uiId</CODE> request
+ * parameter) and new UIs are written again, so users with many open tabs don't pay for all of them on every request. UIs only changed by pushes
+ * are written with their next request. The shards are read together with the shell.
+ *
+ * If write-behind is enabled in the {@link RedisSessionConfig}, attribute changes are only staged while a request is processed and written to Redis
+ * in a single pipelined batch once the request is done.
+ *
+ * VaadinSessions, which are set again at the end of every request by the {@link QuarkusRedisFilter}, and the staged changes of write-behind are
+ * written by a single flight per session. While a thread writes them, concurrent requests only mark them dirty, and the writing thread serializes
+ * and writes the latest state once more when it is done, so overlapping requests of a session don't serialize the same VaadinSession in parallel
+ * and the latest state is always written last.
+ *
+ * If a push debounce window is configured, VaadinSessions changed by <CODE>UI.access</CODE> commands outside of requests are persisted as well.
+ * Every message pushed to a UI marks its VaadinSession dirty, see {@link PersistingPushConnectionFactory}, and the dirty VaadinSession is written
+ * once the window is over, so a session is written at most once per window however often its UIs are pushed to.
+ *
+ * If asynchronous writes are enabled, writes and timeout bumps are queued and sent by a small pool of writer threads, so request threads only wait
+ * for Redis when reading. The queue is bounded and the {@link AsyncOverflowPolicy} defines what happens if it is full.
+ *
+ * Every write increments the version field of the session hash, and every in-memory copy remembers the version it is in sync with. If
+ * invalidation is enabled in the {@link RedisSessionConfig}, the written attributes are published on a {@link SessionInvalidationChannel}, and the
+ * in-memory copies of other nodes are marked stale, so they are reloaded from Redis on their next read. Otherwise, the version is checked once per
+ * request and all attributes are marked stale if it changed. In the ownership mode, meant for sticky sessions, the node serving a session holds a
+ * lease on it and skips the version check while it does. The lease is renewed by the first request after half of the lease time, pipelined with
+ * the version check, and a node taking over a session from another node marks all attributes stale if the version changed. A takeover of a lease
+ * still held by another node increments the version and is published on the invalidation channel, so the previous owner marks all attributes
+ * stale and acquires the lease again with its next request. The ownership mode therefore requires invalidation. Stale attributes are replaced
+ * without notifying the session listeners, as the value was only replaced on this node.
+ *
  * @author Inacta AG
  * @since 1.0.0
  */
 public class RedisSessionManager implements SessionManager {
 
-    private static final String CREATED_FIELD = ":created";
+    /**
+     * Hash fields starting with this prefix hold session metadata and are never exposed as attributes.
+     */
+    private static final String RESERVED_FIELD_PREFIX = ":";
+    private static final String VERSION_FIELD = RESERVED_FIELD_PREFIX + "version";
+    private static final String CREATED_FIELD = RESERVED_FIELD_PREFIX + "created";
+    private static final String LAST_ACCESSED_FIELD = RESERVED_FIELD_PREFIX + "lastAccessed";
+    private static final String MAX_INACTIVE_FIELD = RESERVED_FIELD_PREFIX + "maxInactive";
+    /**
+     * The suffix of the key holding the creation time of sessions written by previous versions, which stored it outside of the session hash and used
+     * the plain session id as key.
+     */
+    private static final String LEGACY_CREATED_KEY_SUFFIX = ":created";
+    private static final String SESSION_KEY_TAG_START = "{";
+    private static final String SESSION_KEY_TAG_END = "}";
+    private static final String LEASE_KEY_SUFFIX = ":lease";
+    /**
+     * The attribute holding the open websocket connections of a session, which is only kept in memory.
+     */
+    private static final String WEBSOCKET_CONNECTIONS_ATTRIBUTE = "io.undertow.websocket.current-connections";
+    private static final long MAX_PASSIVATION_INTERVAL_SECONDS = 60;
+    /**
+     * Sessions accessed within this time are not evicted from memory, as they are probably still used by a request.
+     */
+    private static final long MIN_IDLE_MILLIS_BEFORE_EVICTION = 10_000;
+    /**
+     * The prefix of the attributes holding the VaadinSessions, which are needed by every request and therefore deserialized as soon as a session is
+     * loaded from Redis.
+     */
+    private static final String EAGER_ATTRIBUTE_PREFIX = VaadinSession.class.getName() + ".";
+    /**
+     * Cold attributes up to this size in bytes are kept uncompressed, as compressing them saves little.
+     */
+    private static final int COLD_COMPRESSION_MIN_SIZE = 512;
+    /**
+     * The prefix of the fields holding the UI shards of VaadinSessions, followed by the UI id and the attribute name.
+     */
+    private static final String UI_SHARD_FIELD_PREFIX = RESERVED_FIELD_PREFIX + "ui:";
+    private static final String UI_ID_PARAMETER = "v-uiId";
+    private static final String SESSION_INDEX_KEY_PREFIX = "session-index:";
+    private static final int SESSION_INDEX_PAGE_SIZE = 500;
+    /**
+     * The number of sorted sets the session index is split into in a Redis Cluster, so index updates are spread across the nodes.
+     */
+    private static final int CLUSTER_SESSION_INDEX_BUCKETS = 16;
+    private static final String REDIS_CLIENT_TYPE_PROPERTY = "quarkus.redis.client-type";
+    private static final String REDIS_CLUSTER_CLIENT_TYPE = "cluster";
+    private static final String REDIS_MAX_POOL_SIZE_PROPERTY = "quarkus.redis.max-pool-size";
+    private static final int DEFAULT_REDIS_MAX_POOL_SIZE = 6;
+    private static final String REDIS_TIMEOUT_PROPERTY = "quarkus.redis.timeout";
+    private static final Duration DEFAULT_REDIS_TIMEOUT = Duration.ofSeconds(10);
     private static final Logger LOG = LoggerFactory.getLogger(RedisSessionManager.class);
+    /**
+     * Set while session listeners must not be notified, see {@link #runSilently(Runnable)}.
+     */
+    private static final ThreadLocal<Boolean> SILENT = new ThreadLocal<>();
 
     private final SessionCookieConfig sessionConfig;
     private final SessionManager inMemorySessionManager;
+    private final RedisSessionConfig redisSessionConfig;
+    private final SessionValueCodec codec;
+
+    private final RedisTopology topology;
+    /**
+     * The replicas reads are sent to, <CODE>null</CODE> if all reads go to the primary.
+     */
+    private final RedisTopology replicas;
+    private final ReplicaReadGuard replicaReadGuard;
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong coalescedPersists = new AtomicLong();
+    private final Duration redisTimeout;
+    private final String sessionIndexKey;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final SessionInvalidationChannel invalidationChannel;
+    private final AsyncWriteQueue writeQueue;
+    private final ScheduledExecutorService passivationScheduler;
+    private final LocalSessionCache localCache;
+    private final SessionSpillStore spillStore;
+    private final RedisCircuitBreaker circuitBreaker;
+    /**
+     * Runs the probe calls of the circuit breaker and the replay of the sessions changed while Redis was not available.
+     */
+    private final ScheduledExecutorService recoveryScheduler;
+    /**
+     * Writes the VaadinSessions changed by pushes once the push debounce window is over, <CODE>null</CODE> if pushes are not persisted.
+     */
+    private final ScheduledExecutorService pushScheduler;
+    /**
+     * The ids of the sessions whose writes failed, which are written to Redis again once it is available.
+     */
+    private final Set<String> replayedSessionIds = ConcurrentHashMap.newKeySet();
 
-    private final RedisClient redisClient;
+    /**
+     * The session wrappers by session id. Keeping the wrappers allows state like staged attribute changes to survive across the requests of a
+     * session.
+     */
+    private final ConcurrentMap<String, SessionImpl> sessions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<SessionListener, SessionListener> listeners = new ConcurrentHashMap<>();
 
-    public RedisSessionManager(final SessionCookieConfig sessionCookieConfig, final SessionManager inMemorySessionManager) {
+    public RedisSessionManager(final SessionCookieConfig sessionCookieConfig, final SessionManager inMemorySessionManager,
+            final RedisSessionConfig redisSessionConfig) {
 
         this.sessionConfig = sessionCookieConfig;
         this.inMemorySessionManager = inMemorySessionManager;
-        this.redisClient = Arc.container().instance(RedisClient.class).get();
+        this.redisSessionConfig = redisSessionConfig;
+        if (redisSessionConfig.isOwnership() && !redisSessionConfig.isInvalidation()) {
+            // the previous owner of a session only learns about a takeover by the invalidation channel
+            LOG.warn("The ownership mode requires invalidation to be enabled, checking the session versions instead");
+            redisSessionConfig.setOwnership(false);
+        }
+        this.codec = new SessionValueCodec(redisSessionConfig.getSerializer(), redisSessionConfig.getReaders(),
+                redisSessionConfig.getCompressionThreshold());
+        this.topology = createTopology(redisSessionConfig);
+        this.replicas = createReplicas(redisSessionConfig, this.topology);
+        this.replicaReadGuard = this.replicas == null ? null : new ReplicaReadGuard(redisSessionConfig.getReplicaReadWindow());
+        final Duration clientTimeout = ConfigProvider.getConfig().getOptionalValue(REDIS_TIMEOUT_PROPERTY, Duration.class).orElse(DEFAULT_REDIS_TIMEOUT);
+        final Duration callTimeout = Duration.ofMillis(redisSessionConfig.getCircuitBreakerCallTimeout());
+        this.redisTimeout = redisSessionConfig.isCircuitBreaker() && callTimeout.compareTo(clientTimeout) < 0 ? callTimeout : clientTimeout;
+        this.sessionIndexKey = SESSION_INDEX_KEY_PREFIX + inMemorySessionManager.getDeploymentName();
+        this.invalidationChannel = redisSessionConfig.isInvalidation()
+                ? new SessionInvalidationChannel(this.topology.primary(), inMemorySessionManager.getDeploymentName(), this.nodeId,
+                        new RemoteSessionEventHandler())
+                : null;
+        this.writeQueue = redisSessionConfig.isAsyncWrites()
+                ? new AsyncWriteQueue(this::batch, this.redisTimeout, redisSessionConfig.getAsyncQueueCapacity(), redisSessionConfig.getAsyncWriters(),
+                        redisSessionConfig.getAsyncOverflowPolicy())
+                : null;
+        this.passivationScheduler = redisSessionConfig.getPassivationIdleTime() > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "redis-session-passivation");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        this.pushScheduler = redisSessionConfig.getPushDebounceWindow() > 0 ? Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "redis-session-push");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+        this.localCache = new LocalSessionCache(redisSessionConfig.getMaxInMemoryBytes(), this::isEvictable);
+        this.spillStore = createSpillStore(redisSessionConfig);
+        if (redisSessionConfig.isCircuitBreaker()) {
+            this.recoveryScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "redis-session-recovery");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.circuitBreaker = new RedisCircuitBreaker(redisSessionConfig.getCircuitBreakerFailureThreshold(),
+                    redisSessionConfig.getCircuitBreakerSlowCallTime(), redisSessionConfig.getCircuitBreakerOpenTime(),
+                    () -> this.recoveryScheduler.execute(this::replaySessions));
+        } else {
+            this.recoveryScheduler = null;
+            this.circuitBreaker = null;
+        }
+        this.inMemorySessionManager.registerSessionListener(new SessionCacheListener());
+    }
+
+    /**
+     * Creates the topology of the Redis endpoints. Without configured shards, the Redis of the Quarkus redis client is used, which may be a Redis
+     * Cluster.
+     */
+    private static RedisTopology createTopology(final RedisSessionConfig redisSessionConfig) {
+
+        final List<String> shardHosts = redisSessionConfig.getShardHosts();
+        if (shardHosts.isEmpty()) {
+            final boolean cluster = ConfigProvider.getConfig().getOptionalValue(REDIS_CLIENT_TYPE_PROPERTY, String.class)
+                    .filter(REDIS_CLUSTER_CLIENT_TYPE::equalsIgnoreCase).isPresent();
+            return new RedisTopology(new Redis(Arc.container().instance(io.vertx.redis.client.Redis.class).get()), cluster);
+        }
+        return new RedisTopology(shardHosts, createClients(shardHosts));
+    }
+
+    /**
+     * Creates the topology of the replicas reads are sent to, which distributes the sessions across the replicas like shards, so the reads of a
+     * session always go to the same replica and never go back in time.
+     */
+    private static RedisTopology createReplicas(final RedisSessionConfig redisSessionConfig, final RedisTopology topology) {
+
+        final List<String> replicaHosts = redisSessionConfig.getReplicaHosts();
+        if (replicaHosts.isEmpty()) {
+            return null;
+        }
+        if (topology.isPartitioned()) {
+            LOG.warn("Replica reads are only supported with a single standalone redis, all reads are sent to the primaries");
+            return null;
+        }
+        return new RedisTopology(replicaHosts, createClients(replicaHosts));
+    }
+
+    private static List<Redis> createClients(final List<String> hosts) {
+
+        final Vertx vertx = Arc.container().instance(Vertx.class).get();
+        final int maxPoolSize = ConfigProvider.getConfig().getOptionalValue(REDIS_MAX_POOL_SIZE_PROPERTY, Integer.class)
+                .orElse(DEFAULT_REDIS_MAX_POOL_SIZE);
+        return hosts.stream().map(host -> new RedisOptions().setConnectionString(host).setMaxPoolSize(maxPoolSize))
+                .map(options -> new Redis(io.vertx.redis.client.Redis.createClient(vertx, options))).collect(Collectors.toList());
+    }
+
+    private static SessionSpillStore createSpillStore(final RedisSessionConfig redisSessionConfig) {
+
+        if (redisSessionConfig.getSpillFile() == null) {
+            return null;
+        }
+        try {
+            return new SessionSpillStore(Paths.get(redisSessionConfig.getSpillFile()), redisSessionConfig.getSpillMaxBytes());
+        } catch (final IOException e) {
+            LOG.error("Failed to create the session spill file {}, sessions dropped from memory are loaded from redis",
+                    redisSessionConfig.getSpillFile(), e);
+            return null;
+        }
     }
 
     @Override
@@ -79,23 +354,78 @@ public class RedisSessionManager implements SessionManager {
     public void start() {
 
         this.inMemorySessionManager.start();
+        try {
+            loadScripts();
+        } catch (final RuntimeException e) {
+            LOG.warn("Failed to load the session scripts into redis, they will be loaded on first use", e);
+        }
+        if (this.invalidationChannel != null) {
+            this.invalidationChannel.start();
+        }
+        if (this.passivationScheduler != null) {
+            final long interval = Math.max(1, Math.min(this.redisSessionConfig.getPassivationIdleTime() / 2, MAX_PASSIVATION_INTERVAL_SECONDS));
+            this.passivationScheduler.scheduleWithFixedDelay(this::passivateIdleSessions, interval, interval, TimeUnit.SECONDS);
+        }
+        if (this.recoveryScheduler != null) {
+            final long openTime = this.redisSessionConfig.getCircuitBreakerOpenTime();
+            this.recoveryScheduler.scheduleWithFixedDelay(this::probeRedis, openTime, openTime, TimeUnit.MILLISECONDS);
+        }
     }
 
     @Override
     public void stop() {
 
-        this.redisClient.close();
+        if (this.passivationScheduler != null) {
+            this.passivationScheduler.shutdownNow();
+        }
+        if (this.recoveryScheduler != null) {
+            this.recoveryScheduler.shutdownNow();
+        }
+        if (this.invalidationChannel != null) {
+            this.invalidationChannel.stop();
+        }
+        if (this.pushScheduler != null) {
+            this.pushScheduler.shutdownNow();
+            // write the pushed changes still waiting for the end of their window
+            this.sessions.values().stream().filter(session -> !session.pushedAttributes.isEmpty()).forEach(SessionImpl::writePushed);
+        }
+        if (this.writeQueue != null) {
+            this.writeQueue.stop();
+        }
+        if (this.spillStore != null) {
+            this.spillStore.close();
+        }
+        if (this.replicas != null) {
+            this.replicas.close();
+        }
+        this.topology.close();
         this.inMemorySessionManager.stop();
     }
 
     @Override
     public Session createSession(final HttpServerExchange serverExchange, final SessionConfig sessionConfig) {
 
-        final SessionImpl session = new SessionImpl(this, this.inMemorySessionManager.createSession(serverExchange, sessionConfig), sessionConfig);
+        final SessionImpl session = wrap(this.inMemorySessionManager.createSession(serverExchange, sessionConfig), sessionConfig);
+        session.knownVersion = 0;
+        session.attributeNamesKnown = true;
 
+        final String id = session.getId();
         final long created = System.currentTimeMillis();
-        this.redisClient.set(Arrays.asList(session.getId() + CREATED_FIELD, String.valueOf(created)));
-        session.bumpTimeout();
+        session.creationTime = created;
+        session.lastAccessedTime = created;
+        session.lastRefresh = created;
+        final Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put(CREATED_FIELD, created);
+        metadata.put(LAST_ACCESSED_FIELD, created);
+        metadata.put(MAX_INACTIVE_FIELD, session.getMaxInactiveInterval());
+        final List<Request> requests = new ArrayList<>();
+        requests.add(writeFields(id, session.getMaxInactiveInterval(), false, true, metadata, Collections.emptyList()));
+        requests.add(indexSession(id, session.getMaxInactiveInterval()));
+        if (this.redisSessionConfig.isOwnership()) {
+            requests.add(acquireLease(id));
+            session.leaseRenewalTime = created + leaseMillis() / 2;
+        }
+        write(id, requests, null);
         return session;
     }
 
@@ -104,25 +434,97 @@ public class RedisSessionManager implements SessionManager {
 
         final Session inMemorySession = this.inMemorySessionManager.getSession(serverExchange, sessionConfig);
         if (inMemorySession != null) {
-            return new SessionImpl(this, inMemorySession, sessionConfig);
+            final SessionImpl session = wrap(inMemorySession, sessionConfig);
+            this.localCache.recordHit(session.getId());
+            try {
+                if (this.redisSessionConfig.isOwnership()) {
+                    session.renewLease();
+                } else if (this.invalidationChannel == null) {
+                    session.checkVersion();
+                }
+            } catch (final RuntimeException e) {
+                degrade(e, session.getId());
+            }
+            return session;
         }
 
         final String sessionId = sessionConfig.findSessionId(serverExchange);
         if (sessionId != null) {
-            if (TRUE.equals(this.redisClient.exists(Collections.singletonList(sessionId)).toBoolean())) {
-                return new SessionImpl(this, this.inMemorySessionManager.createSession(serverExchange, sessionConfig), sessionConfig);
+            this.localCache.recordMiss();
+            final Map<String, byte[]> spilledFields = this.spillStore == null ? null : this.spillStore.take(sessionId);
+            if (spilledFields != null && isSpillCurrent(sessionId, spilledFields)) {
+                final SessionImpl session = wrap(this.inMemorySessionManager.createSession(serverExchange, sessionConfig), sessionConfig);
+                final Map<String, ByteBuf> fields = new LinkedHashMap<>();
+                spilledFields.forEach((name, value) -> fields.put(name, Unpooled.wrappedBuffer(value)));
+                session.hydrate(fields);
+                return session;
+            }
+            // sessions written by previous versions can only exist on a single endpoint
+            final boolean legacyLookup = !this.topology.isPartitioned();
+            final List<Request> requests = new ArrayList<>();
+            requests.add(Request.cmd(Command.HGETALL).arg(sessionKey(sessionId)));
+            if (legacyLookup) {
+                requests.add(Request.cmd(Command.HGETALL).arg(sessionId));
+                requests.add(Request.cmd(Command.GET).arg(sessionId + LEGACY_CREATED_KEY_SUFFIX));
+            }
+            if (this.redisSessionConfig.isOwnership()) {
+                // taken first, so the session is loaded with the version incremented by a takeover
+                requests.add(0, acquireLease(sessionId));
+            }
+            final List<Response> hydration;
+            try {
+                if (this.redisSessionConfig.isOwnership()) {
+                    // the lease is taken on the primary, so the session is loaded from there as well
+                    final List<Response> responses = batch(sessionId, requests);
+                    leaseAcquired(sessionId, responses.get(0));
+                    hydration = responses.subList(1, responses.size());
+                } else {
+                    hydration = read(sessionId, 0, requests);
+                }
+            } catch (final RuntimeException e) {
+                // the session can't be loaded, so a new one is created
+                degrade(e, sessionId);
+                return null;
+            }
+            final boolean legacy = legacyLookup && isEmpty(hydration.get(0)) && !isEmpty(hydration.get(1));
+            final Response fields = legacy ? hydration.get(1) : hydration.get(0);
+            if (!isEmpty(fields)) {
+                final SessionImpl session = wrap(this.inMemorySessionManager.createSession(serverExchange, sessionConfig), sessionConfig);
+                session.hydrate(fields, legacy ? hydration.get(2) : null);
+                session.leaseRenewalTime = System.currentTimeMillis() + leaseMillis() / 2;
+                if (legacy) {
+                    migrate(session);
+                }
+                return session;
             }
         }
         return null;
     }
 
+    /**
+     * Moves a session written by a previous version to its tagged key. The metadata previous versions kept outside of the session hash or did not
+     * write at all is written into the moved hash, and the session is registered in the session index.
+     */
+    private void migrate(final SessionImpl session) {
+
+        final String sessionId = session.getId();
+        final Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put(CREATED_FIELD, session.creationTime);
+        metadata.put(MAX_INACTIVE_FIELD, session.getMaxInactiveInterval());
+        metadata.put(VERSION_FIELD, Math.max(0, session.knownVersion));
+        write(sessionId, Arrays.asList(SessionScripts.RENAME_SESSION.call(sessionId, sessionKey(sessionId)),
+                writeFields(sessionId, session.getMaxInactiveInterval(), false, false, metadata, Collections.emptyList()),
+                indexSession(sessionId, session.getMaxInactiveInterval()), Request.cmd(Command.DEL).arg(sessionId + LEGACY_CREATED_KEY_SUFFIX)),
+                false, null);
+    }
+
     @Override
     public Session getSession(final String sessionId) {
 
         final Session inMemorySession = this.inMemorySessionManager.getSession(sessionId);
 
         if (inMemorySession != null) {
-            return new SessionImpl(this, inMemorySession, this.sessionConfig);
+            return wrap(inMemorySession, this.sessionConfig);
         }
         return null;
     }
@@ -130,13 +532,16 @@ public class RedisSessionManager implements SessionManager {
     @Override
     public void registerSessionListener(final SessionListener listener) {
 
-        this.inMemorySessionManager.registerSessionListener(listener);
+        this.inMemorySessionManager.registerSessionListener(this.listeners.computeIfAbsent(listener, SilenceableSessionListener::new));
     }
 
     @Override
     public void removeSessionListener(final SessionListener listener) {
 
-        this.inMemorySessionManager.removeSessionListener(listener);
+        final SessionListener registered = this.listeners.remove(listener);
+        if (registered != null) {
+            this.inMemorySessionManager.removeSessionListener(registered);
+        }
     }
 
     @Override
@@ -157,311 +562,2038 @@ public class RedisSessionManager implements SessionManager {
         return getAllSessions();
     }
 
-    // TODO find a solution to notify nodes if a session was altered by another node
     @Override
     public Set<String> getAllSessions() {
 
-        return this.redisClient.keys("*").getKeys();
+        if (this.circuitBreaker != null && this.circuitBreaker.getState() != RedisCircuitBreaker.State.CLOSED) {
+            return this.inMemorySessionManager.getAllSessions();
+        }
+        final long now = System.currentTimeMillis();
+        final Set<String> sessionIds = new HashSet<>();
+        for (final Redis redis : this.topology.all()) {
+            for (final String indexKey : indexKeys()) {
+                pruneSessionIndex(redis, indexKey, now);
+                String cursor = "0";
+                do {
+                    final Response page = send(redis, Request.cmd(Command.ZSCAN).arg(indexKey).arg(cursor).arg("COUNT").arg(SESSION_INDEX_PAGE_SIZE));
+                    cursor = page.get(0).toString();
+                    final Iterator<Response> entries = page.get(1).iterator();
+                    while (entries.hasNext()) {
+                        final String sessionId = entries.next().toString();
+                        if (Double.parseDouble(entries.next().toString()) > now) {
+                            sessionIds.add(sessionId);
+                        }
+                    }
+                } while (!"0".equals(cursor));
+            }
+        }
+        return sessionIds;
     }
 
-    @Override
-    public SessionManagerStatistics getStatistics() {
+    /**
+     * Removes a bounded number of expired sessions from a session index, so pruning never blocks Redis for long.
+     */
+    private void pruneSessionIndex(final Redis redis, final String indexKey, final long now) {
 
-        return this.inMemorySessionManager.getStatistics();
+        final Response expired = send(redis, Request.cmd(Command.ZRANGEBYSCORE).arg(indexKey).arg("-inf").arg(now).arg("LIMIT").arg(0)
+                .arg(SESSION_INDEX_PAGE_SIZE));
+        if (expired == null || expired.size() == 0) {
+            return;
+        }
+        final Request zrem = Request.cmd(Command.ZREM).arg(indexKey);
+        expired.forEach(sessionId -> zrem.arg(sessionId.toString()));
+        send(redis, zrem);
     }
 
     /**
-     * Opens a connection to redis to check if the connection is established.
-     *
-     * @return <CODE>true/false</CODE> indicating if the connectionTest was successful
+     * Drops the in-memory copies of sessions that have been idle for longer than the passivation idle time. The sessions are kept in Redis and
+     * hydrated again by their next request, so the heap only holds the sessions of active users.
      */
-    public boolean isConnectedToRedis() {
+    private void passivateIdleSessions() {
 
-        return true;
+        final long idleSince = System.currentTimeMillis() - this.redisSessionConfig.getPassivationIdleTime() * 1000L;
+        for (final SessionImpl session : this.sessions.values()) {
+            try {
+                if (session.isIdleSince(idleSince) && !this.replayedSessionIds.contains(session.getId())) {
+                    session.passivate();
+                }
+            } catch (final RuntimeException e) {
+                LOG.warn("Failed to passivate session {}", session.getId(), e);
+            }
+        }
     }
 
-    private static class SessionImpl implements Session {
-
-        private static final String REFLECTION_ERROR_MESSAGE = "Unable to access QuarkusVaadinServletService.QuarkusVaadinServiceDelegate through reflection. Consider checking fieldNames";
-        private final Session inMemorySession;
-        private final RedisSessionManager sessionManager;
-        private final SessionConfig sessionConfig;
-
-        private SessionImpl(final RedisSessionManager sessionManager, final Session session, final SessionConfig sessionConfig) {
+    /**
+     * Checks if the spilled fields of a session are still current. With invalidation enabled, spilled sessions changed or removed by other nodes
+     * have been discarded already, so only the expiry is checked locally. Otherwise, the version and last access time are read from Redis, which
+     * is still much less than loading the whole session. The last access time is updated in the spilled fields.
+     */
+    private boolean isSpillCurrent(final String sessionId, final Map<String, byte[]> spilledFields) {
 
-            this.sessionManager = sessionManager;
-            this.inMemorySession = session;
-            this.sessionConfig = sessionConfig;
+        if (this.invalidationChannel != null || (this.circuitBreaker != null && this.circuitBreaker.getState() != RedisCircuitBreaker.State.CLOSED)) {
+            final long lastAccessedTime = Long.parseLong(new String(spilledFields.get(LAST_ACCESSED_FIELD), StandardCharsets.UTF_8));
+            final int maxInactiveInterval = Integer.parseInt(new String(spilledFields.get(MAX_INACTIVE_FIELD), StandardCharsets.UTF_8));
+            return maxInactiveInterval <= 0 || lastAccessedTime + maxInactiveInterval * 1000L > System.currentTimeMillis();
         }
+        final long spilledVersion = Long.parseLong(new String(spilledFields.get(VERSION_FIELD), StandardCharsets.UTF_8));
+        final Response current = read(sessionId, spilledVersion,
+                Request.cmd(Command.HMGET).arg(sessionKey(sessionId)).arg(VERSION_FIELD).arg(LAST_ACCESSED_FIELD));
+        if (current.get(1) == null || toVersion(current.get(0)) != spilledVersion) {
+            return false;
+        }
+        spilledFields.put(LAST_ACCESSED_FIELD, current.get(1).toBytes());
+        return true;
+    }
 
-        @Override
-        public String getId() {
+    /**
+     * Handles the result of a {@link SessionScripts#WRITE_FIELDS} call that must not create the session. If the session hash does not exist, as
+     * another node has invalidated the session or it has expired, the in-memory copy is dropped and the session removed from the index again.
+     *
+     * @return <CODE>false</CODE> if the session does not exist in Redis
+     */
+    private boolean written(final String sessionId, final Response result) {
 
-            return this.inMemorySession.getId();
+        if (result != null) {
+            return true;
+        }
+        LOG.debug("Session {} no longer exists in redis, dropping its in-memory copy", sessionId);
+        try {
+            // sent right away, as this may run on a writer thread, which must not wait for the write queue
+            batch(sessionId, Collections.singletonList(unindexSession(sessionId)));
+        } catch (final RuntimeException e) {
+            LOG.debug("Failed to remove session {} from the session index, it is pruned once it has expired", sessionId, e);
         }
+        dropRemoved(sessionId);
+        return false;
+    }
 
-        @Override
-        public void requestDone(final HttpServerExchange serverExchange) {
+    /**
+     * Drops the in-memory copy of a session removed from Redis by another node. The session listeners are not notified, as that node has notified
+     * its own.
+     */
+    private void dropRemoved(final String sessionId) {
 
-            this.inMemorySession.requestDone(serverExchange);
+        discardSpilled(sessionId);
+        final Session inMemorySession = this.inMemorySessionManager.getSession(sessionId);
+        if (inMemorySession != null) {
+            runSilently(() -> inMemorySession.invalidate(null));
         }
+    }
 
-        @Override
-        public long getCreationTime() {
+    private void discardSpilled(final String sessionId) {
 
-            return Long.parseLong(this.sessionManager.redisClient.get(this.inMemorySession.getId() + CREATED_FIELD).toString());
+        if (this.spillStore != null) {
+            this.spillStore.remove(sessionId);
         }
+    }
 
-        @Override
-        public long getLastAccessedTime() {
+    private boolean isEvictable(final String sessionId) {
+
+        final SessionImpl session = this.sessions.get(sessionId);
+        return session != null && !this.replayedSessionIds.contains(sessionId)
+                && session.isIdleSince(System.currentTimeMillis() - MIN_IDLE_MILLIS_BEFORE_EVICTION);
+    }
 
-            return System.currentTimeMillis()
-                    - ((getMaxInactiveInterval() * 100) - this.sessionManager.redisClient.pttl(this.inMemorySession.getId()).toInteger());
+    /**
+     * Drops the in-memory copies of the sessions evicted by the {@link LocalSessionCache}, like passivation does.
+     */
+    private void evict(final List<String> sessionIds) {
+
+        for (final String sessionId : sessionIds) {
+            final SessionImpl session = this.sessions.get(sessionId);
+            if (session != null) {
+                try {
+                    session.passivate();
+                } catch (final RuntimeException e) {
+                    LOG.warn("Failed to evict session {} from memory", sessionId, e);
+                }
+            }
         }
+    }
 
-        @Override
-        public void setMaxInactiveInterval(final int interval) {
+    @Override
+    public SessionManagerStatistics getStatistics() {
 
-            this.inMemorySession.setMaxInactiveInterval(interval);
-            bumpTimeout();
-        }
+        return this.inMemorySessionManager.getStatistics();
+    }
 
-        @Override
-        public int getMaxInactiveInterval() {
+    /**
+     * Sends a PING to redis to check if the connection is established.
+     *
+     * @return <CODE>true/false</CODE> indicating if the connectionTest was successful
+     */
+    public boolean isConnectedToRedis() {
 
-            return this.inMemorySession.getMaxInactiveInterval();
+        try {
+            this.topology.all().forEach(redis -> send(redis, Request.cmd(Command.PING)));
+            return true;
+        } catch (final RuntimeException e) {
+            LOG.warn("Redis is not available", e);
+            return false;
         }
+    }
 
-        @Override
-        public Object getAttribute(final String name) {
-
-            final Object inMemoryAttribute = this.inMemorySession.getAttribute(name);
+    /**
+     * Probes Redis while the circuit breaker is open, so it recovers even if no session is accessed.
+     */
+    private void probeRedis() {
 
-            if (name.equals("io.undertow.websocket.current-connections")) {
-                return this.inMemorySession.getAttribute(name);
+        if (this.circuitBreaker.getState() == RedisCircuitBreaker.State.OPEN) {
+            try {
+                send(this.topology.primary(), Request.cmd(Command.PING));
+            } catch (final RuntimeException e) {
+                LOG.debug("Redis is still not available", e);
             }
+        }
+    }
 
-            if (inMemoryAttribute != null) {
-                return inMemoryAttribute;
-            } else {
-
-                final Response attribute = this.sessionManager.redisClient.hget(this.inMemorySession.getId(), name);
-
-                if (attribute == null) {
-                    return null;
-                }
-                bumpTimeout();
+    /**
+     * Writes the sessions whose writes failed while Redis was not available. Sessions still held in memory are written as a whole, all others
+     * have been invalidated or have expired in the meantime and are deleted.
+     */
+    private void replaySessions() {
 
-                final Object deserializedAttribute = deserialize(attribute.toString());
-                if (deserializedAttribute instanceof VaadinSession) {
-                    configureVaadinSessionForClientRequest((VaadinSession) deserializedAttribute);
+        for (final String sessionId : new ArrayList<>(this.replayedSessionIds)) {
+            this.replayedSessionIds.remove(sessionId);
+            final SessionImpl session = this.sessions.get(sessionId);
+            try {
+                if (session != null && this.inMemorySessionManager.getSession(sessionId) == session.inMemorySession) {
+                    session.replay();
+                    if (this.replayedSessionIds.contains(sessionId)) {
+                        LOG.warn("Failed to replay the sessions changed while redis was not available");
+                        return;
+                    }
+                } else {
+                    batch(sessionId,
+                            Arrays.asList(Request.cmd(Command.DEL).arg(sessionKey(sessionId)).arg(leaseKey(sessionId)), unindexSession(sessionId)));
                 }
-                this.inMemorySession.setAttribute(name, deserializedAttribute);
-                return deserializedAttribute;
-
+            } catch (final RuntimeException e) {
+                this.replayedSessionIds.add(sessionId);
+                LOG.warn("Failed to replay the sessions changed while redis was not available", e);
+                return;
             }
         }
+        LOG.info("Replayed the sessions changed while redis was not available");
+    }
 
-        private Object deserialize(final String data) {
-
-            if (data == null) {
-                return null;
-            }
-            final byte[] attributeBytes = getDecoder().decode(data);
-            try (final BufferedInputStream bufferedInputStream = new BufferedInputStream(new ByteArrayInputStream(attributeBytes));
-                    final ObjectInputStream objectInputStream = new ObjectInputStream(bufferedInputStream)) {
+    /**
+     * Handles a failed Redis call the session can do without. With the circuit breaker, the session is served from memory, otherwise the failure
+     * is rethrown.
+     */
+    private void degrade(final RuntimeException failure, final String sessionId) {
 
-                return objectInputStream.readObject();
-            } catch (final ClassNotFoundException | IOException e) {
-                LOG.error("Failed to deserialize object from string: {}", data, e);
-                return null;
-            }
+        if (this.circuitBreaker == null) {
+            throw failure;
         }
+        LOG.debug("Redis is not available, serving session {} from memory", sessionId, failure);
+    }
 
-        @Override
-        public Set<String> getAttributeNames() {
+    /**
+     * Handles a failed write of a session. With the circuit breaker, the session is written again once Redis is available, otherwise the failure is
+     * rethrown.
+     */
+    private void writeFailed(final RuntimeException failure, final String sessionId) {
 
-            bumpTimeout();
-            final Set<String> allAttributes = new HashSet<>();
-            allAttributes.addAll(this.inMemorySession.getAttributeNames());
-            allAttributes.addAll(this.sessionManager.redisClient.hkeys(this.inMemorySession.getId()).getKeys());
+        if (this.circuitBreaker == null) {
+            throw failure;
+        }
+        this.replayedSessionIds.add(sessionId);
+        LOG.debug("Failed to write session {} to redis, it is written again once redis is available", sessionId, failure);
+    }
 
-            return allAttributes;
+    /**
+     * @return the number of requests whose session has been found in memory
+     */
+    public long getInMemoryHitCount() {
 
-        }
+        return this.localCache.getHits();
+    }
 
-        @Override
-        public Object setAttribute(final String name, final Object value) {
+    /**
+     * @return the number of requests whose session was not in memory and had to be loaded from Redis
+     */
+    public long getInMemoryMissCount() {
 
-            Object existingAttribute;
+        return this.localCache.getMisses();
+    }
 
-            existingAttribute = this.inMemorySession.setAttribute(name, value);
+    /**
+     * @return the number of in-memory session copies dropped to stay within the configured budget in bytes
+     */
+    public long getInMemoryEvictionCount() {
 
-            if (name.equals("io.undertow.websocket.current-connections")) {
-                return existingAttribute;
-            }
+        return this.localCache.getEvictions();
+    }
 
-            try (final ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream();
-                    final ObjectOutputStream objectOutputStream = new ObjectOutputStream(new BufferedOutputStream(byteOutputStream))) {
+    /**
+     * Notifies a session of a message pushed to one of its UIs, see {@link PersistingPushConnectionFactory}.
+     */
+    static void pushed(final Session session, final VaadinSession vaadinSession, final int uiId) {
 
-                if (value instanceof VaadinSession) {
-                    prepareVaadinSessionForSerialization((VaadinSession) value);
-                }
+        if (session instanceof SessionImpl) {
+            ((SessionImpl) session).pushed(vaadinSession, uiId);
+        }
+    }
 
-                objectOutputStream.writeObject(value);
-                objectOutputStream.flush();
+    /**
+     * @return the number of session writes taken over by a write of the same session already in flight
+     */
+    public long getCoalescedPersistCount() {
 
-                if (value instanceof VaadinSession) {
-                    configureVaadinSessionForClientRequest((VaadinSession) value);
-                }
+        return this.coalescedPersists.get();
+    }
 
-                existingAttribute = this.sessionManager.redisClient.hget(this.inMemorySession.getId(), name);
-                this.sessionManager.redisClient
-                        .hset(Arrays.asList(this.inMemorySession.getId(), name, getEncoder().encodeToString(byteOutputStream.toByteArray())));
+    /**
+     * @return the number of session reads served by a replica
+     */
+    public long getReplicaReadCount() {
 
-                bumpTimeout();
-            } catch (final IOException e) {
-                LOG.error("Failed to serialize a sessionAttribute. Name: {}, value: {}", name, value, e);
-                return null;
-            }
+        return this.replicaReads.get();
+    }
 
-            return existingAttribute;
-        }
+    /**
+     * @return the serialized size in bytes of the sessions kept in memory, 0 if no budget in bytes is configured
+     */
+    public long getInMemoryWeight() {
 
-        @Override
-        public Object removeAttribute(final String name) {
+        return this.localCache.getWeight();
+    }
 
-            final Object existing = getAttribute(name);
-            this.sessionManager.redisClient.hdel(Arrays.asList(this.inMemorySession.getId(), name));
+    private SessionImpl wrap(final Session inMemorySession, final SessionConfig sessionConfig) {
 
-            this.inMemorySession.removeAttribute(name);
-            bumpTimeout();
+        return this.sessions.compute(inMemorySession.getId(),
+                (id, existing) -> existing != null && existing.inMemorySession == inMemorySession ? existing
+                        : new SessionImpl(this, inMemorySession, sessionConfig));
+    }
 
-            return existing;
+    /**
+     * Creates the requests that record the last access time of a session and extend its expiry.
+     */
+    private List<Request> timeoutRequests(final String sessionId, final long lastAccessedTime, final int maxInactiveInterval) {
+
+        final String key = sessionKey(sessionId);
+        final Request expire = maxInactiveInterval > 0 ? Request.cmd(Command.PEXPIRE).arg(key).arg(timeToLive(maxInactiveInterval))
+                : Request.cmd(Command.PERSIST).arg(key);
+        final Request lastAccessed = writeFields(sessionId, maxInactiveInterval, false, false,
+                Collections.singletonMap(LAST_ACCESSED_FIELD, lastAccessedTime), Collections.emptyList());
+        return Arrays.asList(lastAccessed, expire, indexSession(sessionId, maxInactiveInterval));
+    }
+
+    /**
+     * The time to live of a session in milliseconds, which is its max inactive interval extended by the fraction within which the expiry is not
+     * refreshed.
+     */
+    private long timeToLive(final int maxInactiveInterval) {
+
+        return (long) (maxInactiveInterval * 1000L * (1 + this.redisSessionConfig.getTtlRefreshFraction()));
+    }
+
+    private Request indexSession(final String sessionId, final int maxInactiveInterval) {
+
+        final String expiry = maxInactiveInterval > 0 ? String.valueOf(System.currentTimeMillis() + timeToLive(maxInactiveInterval)) : "+inf";
+        return Request.cmd(Command.ZADD).arg(indexKey(sessionId)).arg(expiry).arg(sessionId);
+    }
+
+    private Request acquireLease(final String sessionId) {
+
+        return SessionScripts.ACQUIRE_LEASE.call(leaseKey(sessionId), sessionKey(sessionId)).arg(this.nodeId).arg(leaseMillis()).arg(VERSION_FIELD);
+    }
+
+    /**
+     * Handles the result of {@link SessionScripts#ACQUIRE_LEASE}. If the lease has been taken over from another node, the takeover is published,
+     * so the previous owner stops trusting its in-memory copy right away instead of once its lease renewal is due.
+     *
+     * @return <CODE>true</CODE> if the lease was held by this node already
+     */
+    private boolean leaseAcquired(final String sessionId, final Response result) {
+
+        final long status = result.toLong();
+        if (status < 0 && this.invalidationChannel != null) {
+            this.invalidationChannel.publishTakeover(sessionId, -status);
+        }
+        return status == 1;
+    }
+
+    private long leaseMillis() {
+
+        return this.redisSessionConfig.getLeaseTime() * 1000L;
+    }
+
+    private Request unindexSession(final String sessionId) {
+
+        return Request.cmd(Command.ZREM).arg(indexKey(sessionId)).arg(sessionId);
+    }
+
+    /**
+     * Gets the key of the session index a session is registered in.
+     */
+    private String indexKey(final String sessionId) {
+
+        if (!this.topology.isCluster()) {
+            return this.sessionIndexKey;
+        }
+        return this.sessionIndexKey + ":" + Math.floorMod(RedisTopology.hash(sessionId), CLUSTER_SESSION_INDEX_BUCKETS);
+    }
+
+    private List<String> indexKeys() {
+
+        if (!this.topology.isCluster()) {
+            return Collections.singletonList(this.sessionIndexKey);
+        }
+        return IntStream.range(0, CLUSTER_SESSION_INDEX_BUCKETS).mapToObj(bucket -> this.sessionIndexKey + ":" + bucket).collect(Collectors.toList());
+    }
+
+    /**
+     * Gets the key of the hash of a session. The session id is the hash tag of all keys of a session.
+     */
+    private static String sessionKey(final String sessionId) {
+
+        return SESSION_KEY_TAG_START + sessionId + SESSION_KEY_TAG_END;
+    }
+
+    private static String leaseKey(final String sessionId) {
+
+        return sessionKey(sessionId) + LEASE_KEY_SUFFIX;
+    }
+
+    private static boolean isEmpty(final Response response) {
+
+        return response == null || response.size() == 0;
+    }
+
+    /**
+     * Sends a request about a session to the endpoint holding the session.
+     */
+    private Response send(final String sessionId, final Request request) {
+
+        return send(this.topology.forSession(sessionId), request);
+    }
+
+    private Response send(final Redis redis, final Request request) {
+
+        return guarded(() -> redis.send(request).await().atMost(this.redisTimeout));
+    }
+
+    /**
+     * Sends read requests of a session to a replica, unless the session has been written within the read-your-writes window. The version of the
+     * session is read alongside, and the responses of the replica are only used if it has reached the given version and the highest version
+     * recently written, otherwise the requests are sent to the primary. Failures of replicas don't count for the circuit breaker.
+     */
+    private List<Response> read(final String sessionId, final long minimumVersion, final List<Request> requests) {
+
+        if (this.replicas == null || this.replicaReadGuard.isWrittenRecently(sessionId)) {
+            return batch(sessionId, requests);
+        }
+        final List<Request> replicaRequests = new ArrayList<>(requests);
+        replicaRequests.add(Request.cmd(Command.HGET).arg(sessionKey(sessionId)).arg(VERSION_FIELD));
+        try {
+            final List<Response> responses = this.replicas.forSession(sessionId).batch(replicaRequests).await().atMost(this.redisTimeout);
+            final Response version = responses.get(requests.size());
+            if (version != null && version.toLong() >= Math.max(minimumVersion, this.replicaReadGuard.getMinimumVersion(sessionId))) {
+                this.replicaReads.incrementAndGet();
+                return responses.subList(0, requests.size());
+            }
+        } catch (final RuntimeException e) {
+            LOG.debug("Failed to read session {} from a replica, reading it from the primary", sessionId, e);
+        }
+        return batch(sessionId, requests);
+    }
+
+    private Response read(final String sessionId, final long minimumVersion, final Request request) {
+
+        return read(sessionId, minimumVersion, Collections.singletonList(request)).get(0);
+    }
+
+    /**
+     * Remembers a write of a session, so it is read from the primary within the read-your-writes window.
+     */
+    private void recordWrite(final String sessionId) {
+
+        if (this.replicaReadGuard != null) {
+            this.replicaReadGuard.recordWrite(sessionId, 0);
+        }
+    }
+
+    /**
+     * Sends a pipelined batch of requests of a session to the endpoint holding the session. If a script has not been loaded, e.g. because Redis has
+     * been restarted or the node serving the session has not seen it yet, the batch is sent once more with the scripts loaded ahead of it. Being
+     * part of the batch, the script loads reach the node holding the session in a Redis Cluster as well. This is safe as a failing EVALSHA has no
+     * effect, all other requests are idempotent, and a batch contains at most one script call.
+     */
+    private List<Response> batch(final String sessionId, final List<Request> requests) {
+
+        final Redis redis = this.topology.forSession(sessionId);
+        return guarded(() -> {
+            try {
+                return pipeline(redis, requests);
+            } catch (final RuntimeException e) {
+                if (!SessionScripts.isNoScriptError(e)) {
+                    throw e;
+                }
+                final List<Request> retried = SessionScripts.ALL.stream().map(SessionScripts.Script::load).collect(Collectors.toList());
+                retried.addAll(requests);
+                final List<Response> responses = pipeline(redis, retried);
+                return responses.subList(SessionScripts.ALL.size(), responses.size());
+            }
+        });
+    }
+
+    /**
+     * Sends a pipelined batch of requests to an endpoint. In a Redis Cluster, the updates of the session index are not in the hash slot of the
+     * session, so they are sent on their own, in parallel to the rest of the batch.
+     */
+    private List<Response> pipeline(final Redis redis, final List<Request> requests) {
+
+        final List<Integer> indexPositions = new ArrayList<>();
+        final List<Request> sessionRequests = new ArrayList<>();
+        final List<Uni<?>> calls = new ArrayList<>();
+        for (int i = 0; i < requests.size(); i++) {
+            final Request request = requests.get(i);
+            if (this.topology.isCluster() && isIndexRequest(request)) {
+                indexPositions.add(i);
+                calls.add(redis.send(request));
+            } else {
+                sessionRequests.add(request);
+            }
+        }
+        if (calls.isEmpty()) {
+            return redis.batch(requests).await().atMost(this.redisTimeout);
+        }
+        calls.add(0, sessionRequests.isEmpty() ? Uni.createFrom().item(Collections.emptyList()) : redis.batch(sessionRequests));
+
+        return Uni.combine().all().unis(calls).combinedWith(results -> {
+            final Iterator<?> sessionResponses = ((List<?>) results.get(0)).iterator();
+            final List<Response> responses = new ArrayList<>(requests.size());
+            int indexResponse = 1;
+            for (int i = 0; i < requests.size(); i++) {
+                responses.add((Response) (indexPositions.contains(i) ? results.get(indexResponse++) : sessionResponses.next()));
+            }
+            return responses;
+        }).await().atMost(this.redisTimeout);
+    }
+
+    /**
+     * Checks if a request updates the session index, which is the only sorted set written.
+     */
+    private static boolean isIndexRequest(final Request request) {
+
+        return Command.ZADD.equals(request.command()) || Command.ZREM.equals(request.command());
+    }
+
+    /**
+     * Runs a Redis call through the circuit breaker, if it is enabled.
+     *
+     * @throws IllegalStateException
+     *             if the circuit breaker is open
+     */
+    private <T> T guarded(final Supplier<T> call) {
+
+        if (this.circuitBreaker == null) {
+            return call.get();
+        }
+        if (!this.circuitBreaker.allowRequest()) {
+            throw new IllegalStateException("The redis circuit breaker is open");
+        }
+        final long start = System.nanoTime();
+        final T result;
+        try {
+            result = call.get();
+        } catch (final RuntimeException e) {
+            this.circuitBreaker.onFailure();
+            throw e;
+        }
+        this.circuitBreaker.onSuccess(System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Loads the scripts into every endpoint. In a Redis Cluster, they are only loaded into a single node, the others load them on first use.
+     */
+    private void loadScripts() {
+
+        for (final Redis redis : this.topology.all()) {
+            redis.batch(SessionScripts.ALL.stream().map(SessionScripts.Script::load).collect(Collectors.toList())).await().atMost(this.redisTimeout);
+        }
+    }
+
+    /**
+     * Creates a request writing and removing fields of a session hash in one atomic step.
+     *
+     * @param values
+     *            the fields to write, the values are written as is if they are byte arrays and as strings otherwise
+     * @param incrementVersion
+     *            whether the version of the session is incremented, the response is the new version if so
+     * @param create
+     *            whether the session hash is created if it does not exist, otherwise the response is <CODE>null</CODE> if it does not exist, see
+     *            {@link #written(String, Response)}
+     */
+    private Request writeFields(final String sessionId, final int maxInactiveInterval, final boolean incrementVersion, final boolean create,
+            final Map<String, ?> values, final Collection<String> removed) {
+
+        final Request request = SessionScripts.WRITE_FIELDS.call(sessionKey(sessionId))
+                .arg(maxInactiveInterval > 0 ? timeToLive(maxInactiveInterval) : 0).arg(incrementVersion ? VERSION_FIELD : "").arg(create ? 1 : 0)
+                .arg(values.size());
+        values.forEach((name, value) -> {
+            request.arg(name);
+            if (value instanceof byte[]) {
+                request.arg((byte[]) value);
+            } else {
+                request.arg(String.valueOf(value));
+            }
+        });
+        removed.forEach(request::arg);
+        return request;
+    }
+
+    /**
+     * Writes a pipelined batch of requests of a session. In the asynchronous write mode, the batch is queued and the callback runs on a writer
+     * thread once the batch has been written, otherwise both happen on the calling thread.
+     */
+    private void write(final String sessionId, final List<Request> requests, final Consumer<List<Response>> onWritten) {
+
+        write(sessionId, requests, true, onWritten);
+    }
+
+    /**
+     * Writes a pipelined batch of requests of a session.
+     *
+     * @param droppable
+     *            whether the write may be dropped by a full write queue, see {@link AsyncWriteQueue#submit(String, List, boolean)}
+     */
+    private void write(final String sessionId, final List<Request> requests, final boolean droppable, final Consumer<List<Response>> onWritten) {
+
+        recordWrite(sessionId);
+        if (this.writeQueue == null) {
+            final List<Response> responses;
+            try {
+                responses = batch(sessionId, requests);
+            } catch (final RuntimeException e) {
+                writeLost(sessionId);
+                writeFailed(e, sessionId);
+                return;
+            }
+            recordWrite(sessionId);
+            if (onWritten != null) {
+                onWritten.accept(responses);
+            }
+            return;
+        }
+        this.writeQueue.submit(sessionId, requests, droppable).thenAccept(responses -> {
+            recordWrite(sessionId);
+            if (onWritten != null) {
+                onWritten.accept(responses);
+            }
+        }).exceptionally(e -> {
+            writeLost(sessionId);
+            if (this.circuitBreaker != null) {
+                this.replayedSessionIds.add(sessionId);
+            }
+            LOG.error("Failed to write session {} to redis", sessionId, e);
+            return null;
+        });
+    }
+
+    /**
+     * Makes sure the changes of a failed or dropped write of a session are written again, as the fingerprints of the written fields have been
+     * recorded when the write was queued.
+     */
+    private void writeLost(final String sessionId) {
+
+        final SessionImpl session = this.sessions.get(sessionId);
+        if (session != null) {
+            session.writeLost();
+        }
+    }
+
+    /**
+     * Writes a pipelined batch of requests of a session and waits for it, after all writes of the session queued before.
+     */
+    private List<Response> writeAndWait(final String sessionId, final List<Request> requests) {
+
+        recordWrite(sessionId);
+        final List<Response> responses = this.writeQueue == null ? batch(sessionId, requests)
+                : this.writeQueue.submit(sessionId, requests, false).join();
+        recordWrite(sessionId);
+        return responses;
+    }
+
+    /**
+     * Moves a session to a new id. On a single endpoint, the session hash is renamed in one atomic step. Otherwise, the keys of both ids may be on
+     * different nodes, so the hash is copied with DUMP and RESTORE, keeping its expiry, and deleted afterwards.
+     */
+    private void moveSession(final String oldId, final String newId, final int maxInactiveInterval) {
+
+        if (!this.topology.isPartitioned()) {
+            writeAndWait(oldId, Arrays.asList(SessionScripts.RENAME_SESSION.call(sessionKey(oldId), sessionKey(newId)), unindexSession(oldId),
+                    indexSession(newId, maxInactiveInterval), Request.cmd(Command.DEL).arg(leaseKey(oldId))));
+            recordWrite(newId);
+            return;
+        }
+        final List<Response> dump = writeAndWait(oldId,
+                Arrays.asList(Request.cmd(Command.DUMP).arg(sessionKey(oldId)), Request.cmd(Command.PTTL).arg(sessionKey(oldId))));
+        if (dump.get(0) != null) {
+            // a negative time to live means the session does not expire, which RESTORE expects as 0
+            final long timeToLive = Math.max(0, dump.get(1).toLong());
+            batch(newId, Arrays.asList(Request.cmd(Command.RESTORE).arg(sessionKey(newId)).arg(timeToLive).arg(dump.get(0).toBytes()).arg("REPLACE"),
+                    indexSession(newId, maxInactiveInterval)));
+        }
+        batch(oldId, Arrays.asList(Request.cmd(Command.DEL).arg(sessionKey(oldId)).arg(leaseKey(oldId)), unindexSession(oldId)));
+        recordWrite(newId);
+    }
+
+    private static long toVersion(final Response version) {
+
+        return version == null ? 0 : version.toLong();
+    }
+
+    private void publishChanges(final String sessionId, final Response version, final Collection<String> attributes) {
+
+        if (this.invalidationChannel != null && version != null) {
+            this.invalidationChannel.publishChanges(sessionId, version.toLong(), attributes);
+        }
+    }
+
+    /**
+     * Runs an action on the in-memory session without notifying the registered session listeners. Used when an in-memory copy is replaced or
+     * dropped because of a change made on another node, which has already notified its listeners.
+     */
+    private static void runSilently(final Runnable action) {
+
+        SILENT.set(TRUE);
+        try {
+            action.run();
+        } finally {
+            SILENT.remove();
+        }
+    }
+
+    /**
+     * Drops the session wrappers of sessions that have been destroyed by the {@link io.undertow.server.session.InMemorySessionManager} and keeps
+     * them in sync with session id changes.
+     */
+    private class SessionCacheListener implements SessionListener {
+
+        @Override
+        public void sessionDestroyed(final Session session, final HttpServerExchange exchange, final SessionDestroyedReason reason) {
+
+            final SessionImpl removed = RedisSessionManager.this.sessions.computeIfPresent(session.getId(),
+                    (id, existing) -> existing.inMemorySession == session ? null : existing);
+            if (removed == null) {
+                RedisSessionManager.this.localCache.remove(session.getId());
+            }
+            if (SILENT.get() == null) {
+                // the session has been invalidated or timed out on this node, rather than being dropped from memory
+                discardSpilled(session.getId());
+            }
+        }
+
+        @Override
+        public void sessionIdChanged(final Session session, final String oldSessionId) {
+
+            final SessionImpl existing = RedisSessionManager.this.sessions.remove(oldSessionId);
+            RedisSessionManager.this.localCache.remove(oldSessionId);
+            if (existing != null) {
+                RedisSessionManager.this.sessions.put(session.getId(), existing);
+                existing.updateWeight();
+            }
+        }
+    }
+
+    /**
+     * Wraps the session listeners registered by the servlet container, so they can be {@link RedisSessionManager#runSilently(Runnable) silenced}.
+     */
+    private static class SilenceableSessionListener implements SessionListener {
+
+        private final SessionListener delegate;
+
+        private SilenceableSessionListener(final SessionListener delegate) {
+
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void sessionCreated(final Session session, final HttpServerExchange exchange) {
+
+            if (SILENT.get() == null) {
+                this.delegate.sessionCreated(session, exchange);
+            }
+        }
+
+        @Override
+        public void sessionDestroyed(final Session session, final HttpServerExchange exchange, final SessionDestroyedReason reason) {
+
+            if (SILENT.get() == null) {
+                this.delegate.sessionDestroyed(session, exchange, reason);
+            }
+        }
+
+        @Override
+        public void attributeAdded(final Session session, final String name, final Object value) {
+
+            if (SILENT.get() == null) {
+                this.delegate.attributeAdded(session, name, value);
+            }
+        }
+
+        @Override
+        public void attributeUpdated(final Session session, final String name, final Object newValue, final Object oldValue) {
+
+            if (SILENT.get() == null) {
+                this.delegate.attributeUpdated(session, name, newValue, oldValue);
+            }
+        }
+
+        @Override
+        public void attributeRemoved(final Session session, final String name, final Object oldValue) {
+
+            if (SILENT.get() == null) {
+                this.delegate.attributeRemoved(session, name, oldValue);
+            }
+        }
+
+        @Override
+        public void sessionIdChanged(final Session session, final String oldSessionId) {
+
+            if (SILENT.get() == null) {
+                this.delegate.sessionIdChanged(session, oldSessionId);
+            }
+        }
+    }
+
+    /**
+     * Applies the session events published by other nodes to the in-memory sessions of this node.
+     */
+    private class RemoteSessionEventHandler implements SessionInvalidationChannel.Handler {
+
+        @Override
+        public void attributeChanged(final String sessionId, final String attribute, final long version) {
+
+            if (RedisSessionManager.this.replicaReadGuard != null) {
+                RedisSessionManager.this.replicaReadGuard.recordWrite(sessionId, version);
+            }
+            final SessionImpl session = RedisSessionManager.this.sessions.get(sessionId);
+            if (session != null) {
+                session.remoteChange(attribute, version);
+            } else {
+                discardSpilled(sessionId);
+            }
+        }
+
+        @Override
+        public void sessionRemoved(final String sessionId) {
+
+            dropRemoved(sessionId);
+        }
+
+        @Override
+        public void sessionTakenOver(final String sessionId, final long version) {
+
+            final SessionImpl session = RedisSessionManager.this.sessions.get(sessionId);
+            if (session != null) {
+                session.takenOver(version);
+            } else {
+                discardSpilled(sessionId);
+            }
+        }
+
+        @Override
+        public void keyExpired(final String key) {
+
+            // the keys of sessions written by previous versions are the plain session id
+            final String sessionId = key.startsWith(SESSION_KEY_TAG_START) && key.endsWith(SESSION_KEY_TAG_END) ? key.substring(1, key.length() - 1)
+                    : key;
+            discardSpilled(sessionId);
+            final Session inMemorySession = RedisSessionManager.this.inMemorySessionManager.getSession(sessionId);
+            if (inMemorySession != null) {
+                inMemorySession.invalidate(null);
+            }
+        }
+    }
+
+    private static class SessionImpl implements Session {
+
+        private final Session inMemorySession;
+        private final RedisSessionManager sessionManager;
+        private final SessionConfig sessionConfig;
+        private final VaadinServiceWiring vaadinServiceWiring = new VaadinServiceWiring();
+        private final Set<String> dirtyAttributes = ConcurrentHashMap.newKeySet();
+        private final Set<String> removedAttributes = ConcurrentHashMap.newKeySet();
+        /**
+         * Attributes that have been changed by another node since they were loaded.
+         */
+        private final Set<String> staleAttributes = ConcurrentHashMap.newKeySet();
+        /**
+         * Fingerprints of the serialized attribute values as they were last written to or read from Redis.
+         */
+        private final PersistedFingerprints persistedFingerprints = new PersistedFingerprints();
+        /**
+         * The version of the session hash the in-memory copy is in sync with, a negative value if no attribute has been loaded yet. Volatile, as it
+         * is read without the monitor, which guards its updates.
+         */
+        private volatile long knownVersion = -1;
+        /**
+         * The serialized values of the cold attributes, which have been loaded by {@link #hydrate(Response, Response)} but not read yet.
+         */
+        private final Map<String, byte[]> hydratedValues = new ConcurrentHashMap<>();
+        /**
+         * Whether the in-memory and hydrated attributes include all attributes stored in Redis, so listing them needs no HKEYS.
+         */
+        private volatile boolean attributeNamesKnown;
+        /**
+         * The serialized sizes of the attributes, which add up to the weight of the session in the {@link LocalSessionCache}.
+         */
+        private final Map<String, Integer> attributeWeights = new ConcurrentHashMap<>();
+        private volatile long creationTime;
+        private volatile long lastAccessedTime;
+        /**
+         * The time the expiry of the session was last refreshed in Redis by this node.
+         */
+        private volatile long lastRefresh;
+        private volatile boolean refreshPending;
+        /**
+         * The time after which the ownership lease of this node is renewed by the next request.
+         */
+        private volatile long leaseRenewalTime;
+        /**
+         * Attributes removed by this node whose removal has not been written to Redis yet.
+         */
+        private final Set<String> pendingRemovals = ConcurrentHashMap.newKeySet();
+        /**
+         * The ids of the UIs that handled a request since the VaadinSession was last written.
+         */
+        private final Set<Integer> requestedUiIds = ConcurrentHashMap.newKeySet();
+        /**
+         * The serialized UI shards loaded by {@link #hydrate(Map)}, which are read together with their VaadinSession.
+         */
+        private final Map<String, byte[]> shardValues = new ConcurrentHashMap<>();
+        /**
+         * Whether a thread is writing the staged changes of this session, see {@link #persist()}.
+         */
+        private final AtomicBoolean persisting = new AtomicBoolean();
+        private volatile boolean persistRequested;
+        /**
+         * Whether the next write of {@link #persist()} writes the whole session, see {@link #replay()}.
+         */
+        private volatile boolean replayRequested;
+        /**
+         * The VaadinSession attributes changed by pushes since they were last written, see {@link #pushed(VaadinSession, int)}.
+         */
+        private final Set<String> pushedAttributes = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean pushWriteScheduled = new AtomicBoolean();
+
+        private SessionImpl(final RedisSessionManager sessionManager, final Session session, final SessionConfig sessionConfig) {
+
+            this.sessionManager = sessionManager;
+            this.inMemorySession = session;
+            this.sessionConfig = sessionConfig;
+            this.creationTime = session.getCreationTime();
+            this.lastAccessedTime = session.getLastAccessedTime();
+        }
+
+        @Override
+        public String getId() {
+
+            return this.inMemorySession.getId();
+        }
+
+        @Override
+        public void requestDone(final HttpServerExchange serverExchange) {
+
+            this.inMemorySession.requestDone(serverExchange);
+            if (this.sessionManager.redisSessionConfig.isWriteBehind()) {
+                persist();
+            }
+            if (this.refreshPending) {
+                refreshTimeout();
+            }
+        }
+
+        /**
+         * Takes over a session loaded from Redis with a single HGETALL. The metadata is cached and the attributes Vaadin needs on every request
+         * are deserialized right away. All other attributes are kept as cold attributes in their serialized form, compressed if enabled, and only
+         * deserialized once they are read, so attributes that are never read only cost their serialized size.
+         *
+         * @param fields
+         *            the fields and values of the session hash
+         * @param legacyCreationTime
+         *            the value of the creation time key of sessions written by previous versions
+         */
+        private void hydrate(final Response fields, final Response legacyCreationTime) {
+
+            final Map<String, ByteBuf> values = new LinkedHashMap<>();
+            if (legacyCreationTime != null) {
+                values.put(CREATED_FIELD, legacyCreationTime.toBuffer().getDelegate().getByteBuf());
+            }
+            for (int i = 0; i + 1 < fields.size(); i += 2) {
+                values.put(fields.get(i).toString(), fields.get(i + 1).toBuffer().getDelegate().getByteBuf());
+            }
+            hydrate(values);
+        }
+
+        /**
+         * Takes over a session from the fields of its hash, either loaded from Redis or restored from the {@link SessionSpillStore}.
+         */
+        private void hydrate(final Map<String, ByteBuf> fields) {
+
+            final Map<String, ByteBuf> eagerAttributes = new LinkedHashMap<>();
+            long version = 0;
+            for (final Map.Entry<String, ByteBuf> field : fields.entrySet()) {
+                final String name = field.getKey();
+                final ByteBuf value = field.getValue();
+                if (CREATED_FIELD.equals(name)) {
+                    this.creationTime = Long.parseLong(value.toString(StandardCharsets.UTF_8));
+                } else if (LAST_ACCESSED_FIELD.equals(name)) {
+                    this.lastAccessedTime = Long.parseLong(value.toString(StandardCharsets.UTF_8));
+                } else if (MAX_INACTIVE_FIELD.equals(name)) {
+                    this.inMemorySession.setMaxInactiveInterval(Integer.parseInt(value.toString(StandardCharsets.UTF_8)));
+                } else if (VERSION_FIELD.equals(name)) {
+                    version = Long.parseLong(value.toString(StandardCharsets.UTF_8));
+                } else if (name.startsWith(UI_SHARD_FIELD_PREFIX)) {
+                    final byte[] shard = ByteBufUtil.getBytes(value);
+                    this.persistedFingerprints.loaded(name, AttributeFingerprint.of(shard));
+                    this.shardValues.put(name, shard);
+                } else if (name.startsWith(RESERVED_FIELD_PREFIX)) {
+                    continue;
+                } else if (name.startsWith(EAGER_ATTRIBUTE_PREFIX)) {
+                    this.attributeWeights.put(name, value.readableBytes());
+                    eagerAttributes.put(name, value);
+                } else {
+                    final byte[] serializedValue = ByteBufUtil.getBytes(value);
+                    this.attributeWeights.put(name, serializedValue.length);
+                    this.persistedFingerprints.loaded(name, AttributeFingerprint.of(serializedValue));
+                    this.hydratedValues.put(name, this.sessionManager.redisSessionConfig.isColdAttributeCompression()
+                            ? this.sessionManager.codec.compact(serializedValue, COLD_COMPRESSION_MIN_SIZE)
+                            : serializedValue);
+                }
+            }
+            this.attributeNamesKnown = true;
+            updateWeight();
+            synchronized (this) {
+                this.knownVersion = version;
+            }
+
+            eagerAttributes.forEach((name, data) -> {
+                final Object attribute = deserialize(name, data);
+                if (attribute instanceof VaadinSession) {
+                    configureVaadinSessionForClientRequest((VaadinSession) attribute);
+                }
+                if (attribute != null) {
+                    this.inMemorySession.setAttribute(name, attribute);
+                }
+            });
+            // shards of UIs no longer referenced by their VaadinSession
+            this.shardValues.clear();
+        }
+
+        /**
+         * Checks if the session has not been accessed since the given time. Sessions with open websocket connections are never idle, as pushes
+         * access them without requests.
+         */
+        private boolean isIdleSince(final long time) {
+
+            if (Math.max(this.lastAccessedTime, this.inMemorySession.getLastAccessedTime()) >= time) {
+                return false;
+            }
+            final Object connections = this.inMemorySession.getAttribute(WEBSOCKET_CONNECTIONS_ATTRIBUTE);
+            return connections == null || (connections instanceof Collection && ((Collection<?>) connections).isEmpty());
+        }
+
+        /**
+         * Drops the in-memory copy of this session after writing its staged changes by the single flight of {@link #persist()}. The session
+         * listeners are not notified, as the session lives on in Redis. A session written by another thread right now is kept, it is passivated
+         * the next time.
+         */
+        private void passivate() {
+
+            persist();
+            if (this.persisting.get()) {
+                LOG.debug("Not passivating session {} while it is being written", this.inMemorySession.getId());
+                return;
+            }
+            if (this.sessionManager.spillStore != null) {
+                final Map<String, byte[]> fields = snapshot();
+                if (fields != null) {
+                    this.sessionManager.spillStore.put(this.inMemorySession.getId(), fields);
+                }
+            }
+            runSilently(() -> this.inMemorySession.invalidate(null));
+        }
+
+        /**
+         * Captures the fields of the session hash as this node knows them, to keep them in the {@link SessionSpillStore}.
+         *
+         * @return the fields, or <CODE>null</CODE> if the in-memory copy is not known to match the session in Redis
+         */
+        private Map<String, byte[]> snapshot() {
+
+            final long version = this.knownVersion;
+            if (version < 0 || !this.attributeNamesKnown || !this.staleAttributes.isEmpty() || !this.dirtyAttributes.isEmpty()
+                    || !this.removedAttributes.isEmpty()) {
+                return null;
+            }
+            final Map<String, byte[]> fields = new LinkedHashMap<>();
+            fields.put(CREATED_FIELD, String.valueOf(this.creationTime).getBytes(StandardCharsets.UTF_8));
+            fields.put(LAST_ACCESSED_FIELD, String.valueOf(this.lastAccessedTime).getBytes(StandardCharsets.UTF_8));
+            fields.put(MAX_INACTIVE_FIELD, String.valueOf(getMaxInactiveInterval()).getBytes(StandardCharsets.UTF_8));
+            fields.put(VERSION_FIELD, String.valueOf(version).getBytes(StandardCharsets.UTF_8));
+            fields.putAll(this.hydratedValues);
+            for (final String name : this.inMemorySession.getAttributeNames()) {
+                if (name.equals(WEBSOCKET_CONNECTIONS_ATTRIBUTE)) {
+                    continue;
+                }
+                final Object value = this.inMemorySession.getAttribute(name);
+                final SerializationBuffer serializedValue = value == null ? null : serialize(name, value);
+                if (serializedValue == null) {
+                    return null;
+                }
+                fields.put(name, this.sessionManager.codec.toValue(serializedValue));
+                serializedValue.release();
+            }
+            return fields;
+        }
+
+        /**
+         * Records the serialized size of an attribute, a negative size if it has been removed, and updates the weight of the session in the
+         * {@link LocalSessionCache}, evicting other sessions if the budget is exceeded.
+         */
+        private void weigh(final String name, final int size) {
+
+            if (!this.sessionManager.localCache.isBounded()) {
+                return;
+            }
+            if (size < 0) {
+                this.attributeWeights.remove(name);
+            } else {
+                this.attributeWeights.put(name, size);
+            }
+            updateWeight();
+        }
+
+        private void updateWeight() {
+
+            if (this.sessionManager.localCache.isBounded()) {
+                long weight = 0;
+                for (final int size : this.attributeWeights.values()) {
+                    weight += size;
+                }
+                this.sessionManager.evict(this.sessionManager.localCache.update(this.inMemorySession.getId(), weight));
+            }
+        }
+
+        /**
+         * Handles a lost write of this session, which failed or has been dropped or rejected by a full write queue. All attributes are written again
+         * by the next flush, as the lost write may have contained attributes that are no longer staged, and their fingerprints have been recorded
+         * already.
+         */
+        private void writeLost() {
+
+            this.persistedFingerprints.clear();
+            try {
+                for (final String name : this.inMemorySession.getAttributeNames()) {
+                    if (!name.equals(WEBSOCKET_CONNECTIONS_ATTRIBUTE)) {
+                        this.dirtyAttributes.add(name);
+                    }
+                }
+            } catch (final IllegalStateException e) {
+                // the session has been invalidated
+                return;
+            }
+            this.removedAttributes.addAll(this.pendingRemovals);
+        }
+
+        /**
+         * Writes the whole in-memory state of this session to Redis, including the removals not written yet. Used to replay the changes made
+         * while Redis was not available.
+         */
+        private void replicate() {
+
+            final String id = this.inMemorySession.getId();
+            final Map<String, Object> values = new LinkedHashMap<>();
+            values.put(CREATED_FIELD, this.creationTime);
+            values.put(LAST_ACCESSED_FIELD, this.lastAccessedTime);
+            values.put(MAX_INACTIVE_FIELD, getMaxInactiveInterval());
+            final Map<String, byte[]> writtenValues = new LinkedHashMap<>();
+            final Map<String, AttributeFingerprint> writtenFingerprints = new HashMap<>();
+            final List<String> removed = new ArrayList<>(this.pendingRemovals);
+            for (final String name : this.inMemorySession.getAttributeNames()) {
+                final Object value = name.equals(WEBSOCKET_CONNECTIONS_ATTRIBUTE) ? null : this.inMemorySession.getAttribute(name);
+                if (value != null) {
+                    // written as a whole, as the shards in Redis may be outdated
+                    encode(name, value, false, writtenValues, writtenFingerprints, removed);
+                }
+            }
+            values.putAll(writtenValues);
+            final List<Request> requests = new ArrayList<>();
+            // the whole session is written, so it is created again if it has been lost while Redis was not available
+            requests.add(this.sessionManager.writeFields(id, getMaxInactiveInterval(), true, true, values, removed));
+            requests.addAll(timeoutRequests());
+            final List<Response> responses = this.sessionManager.batch(id, requests);
+            this.sessionManager.recordWrite(id);
+
+            this.pendingRemovals.removeAll(removed);
+            this.persistedFingerprints.queued(writtenFingerprints, removed);
+            final Set<String> changedAttributes = attributesOf(writtenFingerprints.keySet(), removed);
+            observeWrite(toVersion(responses.get(0)), changedAttributes);
+            this.sessionManager.publishChanges(id, responses.get(0), changedAttributes);
+        }
+
+        @Override
+        public long getCreationTime() {
+
+            return this.creationTime;
+        }
+
+        @Override
+        public long getLastAccessedTime() {
+
+            return this.lastAccessedTime;
+        }
+
+        @Override
+        public void setMaxInactiveInterval(final int interval) {
+
+            this.inMemorySession.setMaxInactiveInterval(interval);
+            final String id = this.inMemorySession.getId();
+            final List<Request> requests = new ArrayList<>();
+            requests.add(this.sessionManager.writeFields(id, interval, false, false, Collections.singletonMap(MAX_INACTIVE_FIELD, interval),
+                    Collections.emptyList()));
+            requests.addAll(timeoutRequests());
+            this.sessionManager.write(id, requests, responses -> this.sessionManager.written(id, responses.get(0)));
+        }
+
+        @Override
+        public int getMaxInactiveInterval() {
+
+            return this.inMemorySession.getMaxInactiveInterval();
+        }
+
+        @Override
+        public Object getAttribute(final String name) {
+
+            if (name.equals(WEBSOCKET_CONNECTIONS_ATTRIBUTE)) {
+                return this.inMemorySession.getAttribute(name);
+            }
+
+            final boolean stale = this.staleAttributes.remove(name);
+            final Object inMemoryAttribute = this.inMemorySession.getAttribute(name);
+
+            if (inMemoryAttribute != null && !stale) {
+                return inMemoryAttribute;
+            } else if (this.removedAttributes.contains(name)) {
+                return null;
+            } else {
+
+                final byte[] hydratedValue = this.hydratedValues.remove(name);
+                final Object deserializedAttribute;
+                if (hydratedValue != null) {
+                    // the fingerprint has been recorded when the session was hydrated
+                    deserializedAttribute = decode(name, Unpooled.wrappedBuffer(hydratedValue));
+                } else {
+                    final Response response;
+                    try {
+                        response = read(hashRequest(Command.HMGET).arg(name).arg(VERSION_FIELD));
+                    } catch (final RuntimeException e) {
+                        this.sessionManager.degrade(e, this.inMemorySession.getId());
+                        if (stale) {
+                            this.staleAttributes.add(name);
+                        }
+                        return inMemoryAttribute;
+                    }
+                    final Response attribute = response.get(0);
+                    observeVersion(toVersion(response.get(1)), name);
+
+                    if (attribute == null) {
+                        if (inMemoryAttribute != null) {
+                            this.persistedFingerprints.remove(name);
+                            weigh(name, -1);
+                            runSilently(() -> this.inMemorySession.removeAttribute(name));
+                        }
+                        return null;
+                    }
+                    final ByteBuf data = attribute.toBuffer().getDelegate().getByteBuf();
+                    weigh(name, data.readableBytes());
+                    deserializedAttribute = deserialize(name, data);
+                }
+                touch();
+
+                if (deserializedAttribute instanceof VaadinSession) {
+                    configureVaadinSessionForClientRequest((VaadinSession) deserializedAttribute);
+                }
+                if (inMemoryAttribute != null) {
+                    runSilently(() -> this.inMemorySession.setAttribute(name, deserializedAttribute));
+                } else {
+                    this.inMemorySession.setAttribute(name, deserializedAttribute);
+                }
+                return deserializedAttribute;
+
+            }
         }
 
-        @Override
-        public void invalidate(final HttpServerExchange exchange) {
+        /**
+         * Marks an attribute changed by another node, unless it has a local change that is not written yet.
+         */
+        private void markStale(final String name) {
 
-            this.sessionManager.redisClient.del(Collections.singletonList(this.inMemorySession.getId()));
-            this.sessionManager.redisClient.del(Collections.singletonList(this.inMemorySession.getId() + CREATED_FIELD));
+            if (!this.dirtyAttributes.contains(name)) {
+                this.staleAttributes.add(name);
+                this.hydratedValues.remove(name);
+            }
+        }
 
-            if (exchange != null) {
-                this.sessionConfig.clearSession(exchange, this.getId());
+        /**
+         * Marks all in-memory attributes stale, except the given ones.
+         */
+        private void markAllStale(final Collection<String> excluded) {
+
+            this.attributeNamesKnown = false;
+            this.hydratedValues.clear();
+            for (final String name : this.inMemorySession.getAttributeNames()) {
+                if (!excluded.contains(name) && !name.equals(WEBSOCKET_CONNECTIONS_ATTRIBUTE)) {
+                    markStale(name);
+                }
+            }
+        }
+
+        /**
+         * Handles an attribute change published by another node. Changes the in-memory copy already includes are ignored, and if a change was
+         * missed, all attributes are marked stale.
+         */
+        private synchronized void remoteChange(final String name, final long version) {
+
+            if (version < this.knownVersion) {
+                return;
+            }
+            if (this.knownVersion >= 0 && version > this.knownVersion + 1) {
+                markAllStale(Collections.emptySet());
+            }
+            markStale(name);
+            this.knownVersion = version;
+        }
+
+        /**
+         * Handles the version read together with an attribute. If the session has been changed since the in-memory copy was in sync, all other
+         * attributes are marked stale.
+         */
+        private synchronized void observeVersion(final long version, final String loaded) {
+
+            if (this.knownVersion >= 0 && version > this.knownVersion) {
+                markAllStale(Collections.singleton(loaded));
+            }
+            this.knownVersion = Math.max(this.knownVersion, version);
+        }
+
+        /**
+         * Handles the version returned by a write of this node. If another node has written in between, all other attributes are marked stale.
+         */
+        private synchronized void observeWrite(final long version, final Collection<String> written) {
+
+            if (this.knownVersion >= 0 && version != this.knownVersion + 1) {
+                markAllStale(written);
+            }
+            this.knownVersion = Math.max(this.knownVersion, version);
+        }
+
+        /**
+         * Compares the version of the session hash with the one of the in-memory copy, which only costs a single small HGET, and marks all
+         * attributes stale if the session has been changed by another node.
+         */
+        private void checkVersion() {
+
+            applyVersion(toVersion(read(hashRequest(Command.HGET).arg(VERSION_FIELD))));
+        }
+
+        /**
+         * Handles the takeover of the ownership lease by another node. All attributes are marked stale, and the lease is acquired again by the next
+         * request of this node.
+         */
+        private synchronized void takenOver(final long version) {
+
+            this.leaseRenewalTime = 0;
+            markAllStale(Collections.emptySet());
+            this.knownVersion = version;
+        }
+
+        private synchronized void applyVersion(final long version) {
+
+            if (version != this.knownVersion) {
+                markAllStale(Collections.emptySet());
+                this.knownVersion = version;
+            }
+        }
+
+        /**
+         * Renews the ownership lease of this node once half of the lease time has passed. While the lease is held, no other node can have
+         * changed the session, so the in-memory copy is trusted without any round trip. If the lease was held by another node or has lapsed, the
+         * version of the session is checked as well.
+         */
+        private void renewLease() {
+
+            final long now = System.currentTimeMillis();
+            if (now < this.leaseRenewalTime) {
+                return;
+            }
+            final String id = this.inMemorySession.getId();
+            final List<Response> responses = this.sessionManager.batch(id,
+                    Arrays.asList(this.sessionManager.acquireLease(id), hashRequest(Command.HGET).arg(VERSION_FIELD)));
+            this.leaseRenewalTime = now + this.sessionManager.leaseMillis() / 2;
+            if (!this.sessionManager.leaseAcquired(id, responses.get(0))) {
+                applyVersion(toVersion(responses.get(1)));
+            }
+        }
+
+        /**
+         * Deserializes an attribute value straight from the buffer of the Redis response, without copying it.
+         */
+        private Object deserialize(final String name, final ByteBuf data) {
+
+            this.persistedFingerprints.loaded(name, AttributeFingerprint.of(data));
+            return decode(name, data);
+        }
+
+        private Object decode(final String name, final ByteBuf data) {
+
+            try {
+                if (name.startsWith(EAGER_ATTRIBUTE_PREFIX)) {
+                    // VaadinSessions may be sharded, whatever the current configuration is
+                    return ObjectSubstitution.apply(new VaadinSessionShards.ShellReader(uiId -> readShard(name, uiId)),
+                            () -> this.sessionManager.codec.decode(data));
+                }
+                return this.sessionManager.codec.decode(data);
+            } catch (final ClassNotFoundException | IOException e) {
+                LOG.error("Failed to deserialize sessionAttribute {} of session {}", name, this.inMemorySession.getId(), e);
+                return null;
+            }
+        }
+
+        /**
+         * Reads the shard of a UI of a sharded VaadinSession, from the shards loaded with the session or else from Redis.
+         */
+        private UI readShard(final String name, final int uiId) throws IOException, ClassNotFoundException {
+
+            final String field = shardField(name, uiId);
+            byte[] shard = this.shardValues.remove(field);
+            if (shard == null) {
+                final Response response = read(hashRequest(Command.HGET).arg(field));
+                if (response == null) {
+                    return null;
+                }
+                shard = response.toBytes();
+                this.persistedFingerprints.loaded(field, AttributeFingerprint.of(shard));
+            }
+            this.attributeWeights.put(field, shard.length);
+            return (UI) this.sessionManager.codec.decode(Unpooled.wrappedBuffer(shard));
+        }
+
+        /**
+         * Creates a request for the hash of this session, the arguments following the key are added to the returned request.
+         */
+        private Request hashRequest(final Command command) {
+
+            return Request.cmd(command).arg(sessionKey(this.inMemorySession.getId()));
+        }
+
+        /**
+         * Reads from the hash of this session, from a replica if it has caught up with the version known to this copy.
+         */
+        private Response read(final Request request) {
+
+            return this.sessionManager.read(this.inMemorySession.getId(), this.knownVersion, request);
+        }
+
+        private static String shardField(final String name, final int uiId) {
+
+            return UI_SHARD_FIELD_PREFIX + uiId + RESERVED_FIELD_PREFIX + name;
+        }
+
+        /**
+         * Gets the UI shard fields of an attribute that have been written to or read from Redis.
+         */
+        private List<String> shardFields(final String name) {
+
+            final String suffix = RESERVED_FIELD_PREFIX + name;
+            return this.persistedFingerprints.fields().stream().filter(field -> field.startsWith(UI_SHARD_FIELD_PREFIX) && field.endsWith(suffix))
+                    .collect(Collectors.toList());
+        }
+
+        /**
+         * Gets the names of the attributes the given written and removed fields belong to.
+         */
+        private static Set<String> attributesOf(final Collection<String> written, final Collection<String> removed) {
+
+            final Set<String> attributes = new HashSet<>();
+            for (final Collection<String> fields : Arrays.asList(written, removed)) {
+                for (final String field : fields) {
+                    attributes.add(field.startsWith(UI_SHARD_FIELD_PREFIX)
+                            ? field.substring(field.indexOf(RESERVED_FIELD_PREFIX, UI_SHARD_FIELD_PREFIX.length()) + 1)
+                            : field);
+                }
+            }
+            return attributes;
+        }
+
+        /**
+         * Remembers the UI that handles the current request, so its shard is written with the VaadinSession.
+         */
+        private void recordRequestedUi() {
+
+            final ServletRequestContext context = ServletRequestContext.current();
+            final String uiId = context == null ? null : context.getServletRequest().getParameter(UI_ID_PARAMETER);
+            if (uiId != null) {
+                try {
+                    this.requestedUiIds.add(Integer.valueOf(uiId));
+                } catch (final NumberFormatException e) {
+                    LOG.debug("Ignoring the invalid UI id {}", uiId);
+                }
             }
-            this.inMemorySession.invalidate(exchange);
         }
 
         @Override
-        public SessionManager getSessionManager() {
+        public Set<String> getAttributeNames() {
+
+            touch();
+            final Set<String> allAttributes = new HashSet<>();
+            allAttributes.addAll(this.inMemorySession.getAttributeNames());
+            allAttributes.addAll(this.hydratedValues.keySet());
+            if (!this.attributeNamesKnown || !this.staleAttributes.isEmpty()) {
+                try {
+                    read(hashRequest(Command.HKEYS)).forEach(name -> allAttributes.add(name.toString()));
+                    allAttributes.removeIf(name -> name.startsWith(RESERVED_FIELD_PREFIX));
+                } catch (final RuntimeException e) {
+                    this.sessionManager.degrade(e, this.inMemorySession.getId());
+                }
+            }
+            allAttributes.removeAll(this.removedAttributes);
+
+            return allAttributes;
 
-            return this.sessionManager;
         }
 
         @Override
-        public String changeSessionId(final HttpServerExchange exchange, final SessionConfig config) {
+        public Object setAttribute(final String name, final Object value) {
 
-            final String oldId = this.inMemorySession.getId();
-            final String newId = this.inMemorySession.changeSessionId(exchange, config);
+            Object existingAttribute;
 
-            this.sessionManager.redisClient.rename(oldId, newId);
+            existingAttribute = this.inMemorySession.setAttribute(name, value);
 
-            return newId;
+            if (name.equals(WEBSOCKET_CONNECTIONS_ATTRIBUTE)) {
+                return existingAttribute;
+            }
+            this.staleAttributes.remove(name);
+            this.hydratedValues.remove(name);
+            if (value instanceof VaadinSession) {
+                recordRequestedUi();
+            }
+
+            if (this.sessionManager.redisSessionConfig.isWriteBehind()) {
+                this.removedAttributes.remove(name);
+                this.dirtyAttributes.add(name);
+                return existingAttribute;
+            }
+            if (value instanceof VaadinSession) {
+                this.removedAttributes.remove(name);
+                this.dirtyAttributes.add(name);
+                persist();
+                touch();
+                return existingAttribute;
+            }
+
+            final Map<String, byte[]> values = new LinkedHashMap<>();
+            final Map<String, AttributeFingerprint> fingerprints = new HashMap<>();
+            final List<String> removed = new ArrayList<>();
+            if (!encode(name, value, true, values, fingerprints, removed)) {
+                return null;
+            }
+            removed.forEach(this.attributeWeights::remove);
+            updateWeight();
+            if (values.isEmpty() && removed.isEmpty()) {
+                touch();
+                return existingAttribute;
+            }
+
+            final String id = this.inMemorySession.getId();
+            final Request write = this.sessionManager.writeFields(id, getMaxInactiveInterval(), true, false, values, removed);
+            this.persistedFingerprints.queued(fingerprints, removed);
+            this.sessionManager.write(id, Collections.singletonList(write), responses -> {
+                if (!this.sessionManager.written(id, responses.get(0))) {
+                    return;
+                }
+                observeWrite(toVersion(responses.get(0)), Collections.singleton(name));
+                this.sessionManager.publishChanges(id, responses.get(0), Collections.singleton(name));
+            });
+
+            touch();
+
+            return existingAttribute;
+        }
+
+        /**
+         * Serializes an attribute value into the {@link SerializationBuffer} of the current thread. The returned buffer is only valid until the next
+         * attribute is serialized on the same thread. VaadinSessions are serialized holding their lock, as they may be serialized by another thread
+         * than the one changing them, e.g. when pushed changes are written.
+         */
+        private SerializationBuffer serialize(final String name, final Object value) {
+
+            final boolean locked = value instanceof VaadinSession && lock((VaadinSession) value);
+            try {
+                if (value instanceof VaadinSession) {
+                    prepareVaadinSessionForSerialization((VaadinSession) value);
+                }
+                try {
+                    return encodeValue(value);
+                } catch (final IOException | RuntimeException e) {
+                    LOG.error("Failed to serialize a sessionAttribute. Name: {}, value: {}", name, value, e);
+                    return null;
+                } finally {
+                    if (value instanceof VaadinSession) {
+                        configureVaadinSessionForClientRequest((VaadinSession) value);
+                    }
+                }
+            } finally {
+                if (locked) {
+                    ((VaadinSession) value).unlock();
+                }
+            }
+        }
+
+        /**
+         * Locks a VaadinSession unless it has no lock yet, which is the case while it has not been attached to a VaadinService after being
+         * deserialized, so no other thread can access it.
+         *
+         * @return <CODE>true</CODE> if the VaadinSession has been locked
+         */
+        private static boolean lock(final VaadinSession vaadinSession) {
+
+            if (vaadinSession.getLockInstance() == null) {
+                return false;
+            }
+            vaadinSession.lock();
+            return true;
         }
 
-        private void bumpTimeout() {
+        private SerializationBuffer encodeValue(final Object value) throws IOException {
 
-            this.sessionManager.redisClient.expire(this.inMemorySession.getId(), Integer.toString(getMaxInactiveInterval()));
-            this.sessionManager.redisClient.expire(this.inMemorySession.getId() + CREATED_FIELD, Integer.toString(getMaxInactiveInterval()));
+            final SerializationBuffer buffer = SerializationBuffer.acquire();
+            this.sessionManager.codec.encode(value, buffer);
+            return buffer;
+        }
 
+        /**
+         * Serializes an attribute into the fields to write, skipping fields whose serialized form matches the last persisted one. VaadinSessions
+         * are split into their shell and UI shards if enabled and requested, otherwise any shards written before are removed.
+         *
+         * @return <CODE>false</CODE> if the value could not be serialized
+         */
+        private boolean encode(final String name, final Object value, final boolean shard, final Map<String, byte[]> values,
+                final Map<String, AttributeFingerprint> fingerprints, final Collection<String> removed) {
+
+            if (shard && value instanceof VaadinSession && this.sessionManager.redisSessionConfig.isVaadinSessionSharding()
+                    && encodeShards(name, (VaadinSession) value, values, fingerprints, removed)) {
+                return true;
+            }
+            final SerializationBuffer serializedValue = serialize(name, value);
+            if (serializedValue == null) {
+                return false;
+            }
+            addField(name, serializedValue, values, fingerprints);
+            removed.addAll(shardFields(name));
+            return true;
         }
 
-        private void prepareVaadinSessionForSerialization(final VaadinSession vaadinSession) {
+        /**
+         * Serializes a VaadinSession into its shell and the shards of the UIs that handled a request since the last write or have not been written
+         * yet, holding the lock of the VaadinSession. The shards of closed UIs are removed.
+         *
+         * @return <CODE>false</CODE> if the VaadinSession can't be sharded, e.g. because a UI references another UI
+         */
+        private boolean encodeShards(final String name, final VaadinSession vaadinSession, final Map<String, byte[]> values,
+                final Map<String, AttributeFingerprint> fingerprints, final Collection<String> removed) {
 
-            configureVaadinService(vaadinSession, null);
+            final boolean locked = lock(vaadinSession);
+            try {
+                return encodeShards(name, vaadinSession, new ArrayList<>(vaadinSession.getUIs()), values, fingerprints, removed);
+            } finally {
+                if (locked) {
+                    vaadinSession.unlock();
+                }
+            }
         }
 
-        private void configureVaadinSessionForClientRequest(final VaadinSession vaadinSession) {
+        private boolean encodeShards(final String name, final VaadinSession vaadinSession, final List<UI> uis, final Map<String, byte[]> values,
+                final Map<String, AttributeFingerprint> fingerprints, final Collection<String> removed) {
+
+            final List<Integer> requestedUis = drain(this.requestedUiIds);
+            final Map<String, byte[]> shardedValues = new LinkedHashMap<>();
+            final Map<String, AttributeFingerprint> shardedFingerprints = new HashMap<>();
+            final Set<String> currentShards = new HashSet<>();
+
+            prepareVaadinSessionForSerialization(vaadinSession);
+            try {
+                final VaadinSessionShards.ShellWriter shellWriter = new VaadinSessionShards.ShellWriter();
+                final SerializationBuffer shell = ObjectSubstitution.apply(shellWriter, () -> encodeValue(vaadinSession));
+                if (!shellWriter.replacedAll(uis)) {
+                    return false;
+                }
+                addField(name, shell, shardedValues, shardedFingerprints);
+
+                for (final UI ui : uis) {
+                    final String field = shardField(name, ui.getUIId());
+                    currentShards.add(field);
+                    if (!requestedUis.contains(ui.getUIId()) && this.persistedFingerprints.contains(field)) {
+                        continue;
+                    }
+                    final VaadinSessionShards.ShardWriter shardWriter = new VaadinSessionShards.ShardWriter(ui, vaadinSession);
+                    final SerializationBuffer serializedUi = ObjectSubstitution.apply(shardWriter, () -> encodeValue(ui));
+                    if (shardWriter.referencesOtherUis()) {
+                        return false;
+                    }
+                    addField(field, serializedUi, shardedValues, shardedFingerprints);
+                }
+            } catch (final IOException | ClassNotFoundException | RuntimeException e) {
+                LOG.warn("Failed to shard the VaadinSession {} of session {}, writing it as a whole", name, this.inMemorySession.getId(), e);
+                return false;
+            } finally {
+                configureVaadinSessionForClientRequest(vaadinSession);
+            }
 
-            configureVaadinService(vaadinSession, VaadinService.getCurrent());
+            values.putAll(shardedValues);
+            fingerprints.putAll(shardedFingerprints);
+            for (final String field : shardFields(name)) {
+                if (!currentShards.contains(field)) {
+                    removed.add(field);
+                }
+            }
+            return true;
         }
 
-        private void configureVaadinService(final VaadinSession vaadinSession, final Object vaadinService) {
+        private void addField(final String field, final SerializationBuffer serializedValue, final Map<String, byte[]> values,
+                final Map<String, AttributeFingerprint> fingerprints) {
+
+            this.attributeWeights.put(field, serializedValue.size());
+            // fingerprints are taken from the values as stored in Redis, which are compressed above the compression threshold
+            final SessionValueCodec codec = this.sessionManager.codec;
+            final byte[] compressibleValue = codec.mayCompress(serializedValue) ? codec.toValue(serializedValue) : null;
+            final AttributeFingerprint fingerprint = compressibleValue != null ? AttributeFingerprint.of(compressibleValue)
+                    : AttributeFingerprint.of(serializedValue.array(), 0, serializedValue.size());
+            if (!this.persistedFingerprints.matches(field, fingerprint)) {
+                values.put(field, compressibleValue != null ? compressibleValue : codec.toValue(serializedValue));
+                fingerprints.put(field, fingerprint);
+            }
+            serializedValue.release();
+        }
+
+        /**
+         * Writes all staged attribute changes of this session to Redis. The changed and removed attributes are written atomically by a single
+         * script call, pipelined with the timeout refresh if it is due. Attributes whose serialized form matches the last persisted one are skipped.
+         */
+        private void flush() {
 
-            if (vaadinSession.getSession() == null) {
-                // Session configuration from Vaadin is not finished yet
+            if (this.dirtyAttributes.isEmpty() && this.removedAttributes.isEmpty()) {
                 return;
             }
 
-            vaadinSession.lock();
-            for (final UI ui : vaadinSession.getUIs()) {
-                setVaadinServiceInUIListeners(ui, vaadinService);
+            final String id = this.inMemorySession.getId();
+            final Map<String, byte[]> writtenValues = new LinkedHashMap<>();
+            final Map<String, AttributeFingerprint> writtenFingerprints = new HashMap<>();
+            final List<String> removed = new ArrayList<>();
+            for (final String name : drain(this.dirtyAttributes)) {
+                final Object value = this.inMemorySession.getAttribute(name);
+                if (value != null && !encode(name, value, true, writtenValues, writtenFingerprints, removed)) {
+                    // written again by the next flush
+                    this.dirtyAttributes.add(name);
+                }
+            }
+
+            final List<Request> requests = new ArrayList<>();
+            for (final String name : drain(this.removedAttributes)) {
+                removed.add(name);
+                removed.addAll(shardFields(name));
+            }
+            removed.forEach(this.attributeWeights::remove);
+            this.pendingRemovals.addAll(removed);
+            if (!writtenFingerprints.isEmpty() || !removed.isEmpty()) {
+                updateWeight();
+            }
+            final boolean changed = !writtenValues.isEmpty() || !removed.isEmpty();
+            if (changed) {
+                requests.add(this.sessionManager.writeFields(id, getMaxInactiveInterval(), true, false, writtenValues, removed));
+            }
+            if (this.refreshPending && isRefreshDue()) {
+                requests.addAll(timeoutRequests());
+            }
+            if (requests.isEmpty()) {
+                return;
+            }
+
+            // recorded right away, so a change reverted while the write is queued is written again
+            this.persistedFingerprints.queued(writtenFingerprints, removed);
+            try {
+                this.sessionManager.write(id, requests, responses -> {
+                    // the first request is either the write of the attributes or the one of the last access time
+                    if (!this.sessionManager.written(id, responses.get(0))) {
+                        return;
+                    }
+                    this.pendingRemovals.removeAll(removed);
+                    if (changed) {
+                        final Set<String> changedAttributes = attributesOf(writtenFingerprints.keySet(), removed);
+                        observeWrite(toVersion(responses.get(0)), changedAttributes);
+                        this.sessionManager.publishChanges(id, responses.get(0), changedAttributes);
+                    }
+                });
+            } catch (final RuntimeException e) {
+                LOG.error("Failed to write the staged attributes of session {} to redis", id, e);
+            }
+        }
+
+        /**
+         * Writes the staged changes of this session by a single flight. If another thread is writing them, only a follow-up write is requested,
+         * which that thread performs once it is done, so it captures the latest state.
+         */
+        private void persist() {
+
+            this.persistRequested = true;
+            while (this.persistRequested) {
+                if (!this.persisting.compareAndSet(false, true)) {
+                    this.sessionManager.coalescedPersists.incrementAndGet();
+                    return;
+                }
+                try {
+                    this.persistRequested = false;
+                    if (this.replayRequested) {
+                        this.replayRequested = false;
+                        replicateOrRetry();
+                    }
+                    flush();
+                } finally {
+                    this.persisting.set(false);
+                }
+            }
+        }
+
+        /**
+         * Writes the whole session by the single flight of {@link #persist()}, so a write of newer state by a request is never overwritten by the
+         * replay. If a write is in flight, it replays the session once it is done.
+         */
+        private void replay() {
+
+            this.replayRequested = true;
+            persist();
+        }
+
+        private void replicateOrRetry() {
+
+            try {
+                replicate();
+            } catch (final RuntimeException e) {
+                this.sessionManager.writeFailed(e, this.inMemorySession.getId());
             }
-            vaadinSession.unlock();
         }
 
-        private void setVaadinServiceInUIListeners(final UI ui, final Object vaadinService) {
+        /**
+         * Marks the VaadinSession of a UI dirty after a message has been pushed to the UI, and schedules its write at the end of the push debounce
+         * window unless a write is scheduled already. The UI is written again if the VaadinSession is sharded.
+         */
+        private void pushed(final VaadinSession vaadinSession, final int uiId) {
 
+            if (this.sessionManager.pushScheduler == null) {
+                return;
+            }
             try {
-                final Field eventBusField = ui.getClass().getSuperclass().getDeclaredField("eventBus");
-                setAccessible(eventBusField, true);
-                final ComponentEventBus componentEventBus = (ComponentEventBus) eventBusField.get(ui);
+                for (final String name : this.inMemorySession.getAttributeNames()) {
+                    if (name.startsWith(EAGER_ATTRIBUTE_PREFIX) && this.inMemorySession.getAttribute(name) == vaadinSession) {
+                        this.pushedAttributes.add(name);
+                    }
+                }
+            } catch (final IllegalStateException e) {
+                // the session has been invalidated
+                return;
+            }
+            this.requestedUiIds.add(uiId);
+            schedulePushWrite();
+        }
+
+        private void schedulePushWrite() {
 
-                final Field componentEventDataField = componentEventBus.getClass().getDeclaredField("componentEventData");
-                setAccessible(componentEventDataField, true);
-                final Set<?> keySet = ((Map<?, ?>) componentEventDataField.get(componentEventBus)).keySet();
+            if (!this.pushedAttributes.isEmpty() && this.pushWriteScheduled.compareAndSet(false, true)) {
+                this.sessionManager.pushScheduler.schedule(this::writePushed, this.sessionManager.redisSessionConfig.getPushDebounceWindow(),
+                        TimeUnit.MILLISECONDS);
+            }
+        }
 
-                for (final Object key : keySet) {
-                    ((ArrayList<?>) ((Map<?, ?>) componentEventDataField.get(componentEventBus)).get(key))
-                            .forEach(componentEventBusListenerWrapper -> {
-                                try {
-                                    final Field listenerField = componentEventBusListenerWrapper.getClass().getDeclaredField("listener");
-                                    setAccessible(listenerField, true);
-                                    final ComponentEventListener<?> listener = (ComponentEventListener<?>) listenerField
-                                            .get(componentEventBusListenerWrapper);
-                                    setAccessible(listenerField, false);
+        private void writePushed() {
 
-                                    if (listener.getClass().getName().contains("QuarkusVaadinServletService")) {
-                                        setVaadinServiceInUIListener(listener, vaadinService);
-                                    }
-                                } catch (final ReflectiveOperationException e) {
-                                    LOG.error(REFLECTION_ERROR_MESSAGE, e);
-                                }
-                            });
+            this.pushWriteScheduled.set(false);
+            final List<String> pushed = drain(this.pushedAttributes);
+            if (this.sessionManager.sessions.get(getId()) != this) {
+                // the session has been invalidated or dropped from memory meanwhile
+                return;
+            }
+            this.dirtyAttributes.addAll(pushed);
+            try {
+                persist();
+            } catch (final RuntimeException e) {
+                LOG.error("Failed to write the pushed changes of session {} to redis, retrying after the push debounce window", getId(), e);
+                this.pushedAttributes.addAll(pushed);
+                if (!this.sessionManager.pushScheduler.isShutdown()) {
+                    schedulePushWrite();
                 }
-                setAccessible(eventBusField, false);
-                setAccessible(componentEventDataField, false);
-            } catch (final ReflectiveOperationException e) {
-                LOG.error(REFLECTION_ERROR_MESSAGE, e);
             }
         }
 
-        private void setVaadinServiceInUIListener(final Object listener, final Object value) throws ReflectiveOperationException {
+        private static <T> List<T> drain(final Set<T> elements) {
+
+            final List<T> drained = new ArrayList<>(elements);
+            elements.removeAll(drained);
+            return drained;
+        }
+
+        @Override
+        public Object removeAttribute(final String name) {
+
+            if (this.sessionManager.redisSessionConfig.isWriteBehind()) {
+                final Object existing = getAttribute(name);
+                this.dirtyAttributes.remove(name);
+                this.removedAttributes.add(name);
+                this.inMemorySession.removeAttribute(name);
+                return existing;
+            }
+
+            final Object existing = getAttribute(name);
+            final String id = this.inMemorySession.getId();
+            final List<String> removed = new ArrayList<>(shardFields(name));
+            removed.add(name);
+            this.persistedFingerprints.queued(Collections.emptyMap(), removed);
+            removed.forEach(this.attributeWeights::remove);
+            this.pendingRemovals.addAll(removed);
+            this.sessionManager.write(id, Collections.singletonList(this.sessionManager.writeFields(id, getMaxInactiveInterval(), true, false,
+                    Collections.emptyMap(), removed)), responses -> {
+                        if (!this.sessionManager.written(id, responses.get(0))) {
+                            return;
+                        }
+                        this.pendingRemovals.removeAll(removed);
+                        observeWrite(toVersion(responses.get(0)), Collections.singleton(name));
+                        this.sessionManager.publishChanges(id, responses.get(0), Collections.singleton(name));
+                    });
+
+            this.inMemorySession.removeAttribute(name);
+            updateWeight();
+            touch();
+
+            return existing;
+        }
+
+        @Override
+        public void invalidate(final HttpServerExchange exchange) {
+
+            this.dirtyAttributes.clear();
+            this.removedAttributes.clear();
+            this.staleAttributes.clear();
+            this.hydratedValues.clear();
+            this.persistedFingerprints.clear();
+            final String id = this.inMemorySession.getId();
+            this.sessionManager.discardSpilled(id);
+            final Request delete = Request.cmd(Command.DEL).arg(sessionKey(id)).arg(leaseKey(id));
+            this.sessionManager.write(id, Arrays.asList(delete, this.sessionManager.unindexSession(id)), false, responses -> {
+                        if (this.sessionManager.invalidationChannel != null) {
+                            this.sessionManager.invalidationChannel.publishInvalidation(id);
+                        }
+                    });
+
+            if (exchange != null) {
+                this.sessionConfig.clearSession(exchange, this.getId());
+            }
+            this.inMemorySession.invalidate(exchange);
+        }
+
+        @Override
+        public SessionManager getSessionManager() {
+
+            return this.sessionManager;
+        }
+
+        @Override
+        public String changeSessionId(final HttpServerExchange exchange, final SessionConfig config) {
+
+            final String oldId = this.inMemorySession.getId();
+            final String newId = this.inMemorySession.changeSessionId(exchange, config);
+            this.sessionManager.discardSpilled(oldId);
+
+            // waits for the move, as the writes of the new id might go to another stripe of the write queue
+            try {
+                this.sessionManager.moveSession(oldId, newId, getMaxInactiveInterval());
+            } catch (final RuntimeException e) {
+                // the old session is deleted and the new one written as a whole once Redis is available
+                this.sessionManager.writeFailed(e, oldId);
+                this.sessionManager.replayedSessionIds.add(newId);
+            }
+            this.leaseRenewalTime = 0;
+            if (this.sessionManager.invalidationChannel != null) {
+                this.sessionManager.invalidationChannel.publishRename(oldId);
+            }
+
+            return newId;
+        }
 
-            final Field delegateField = listener.getClass().getDeclaredField("delegate");
+        /**
+         * Records an access of the session. Within a servlet request, the expiry of the session is refreshed once the request is done, otherwise
+         * (e.g. for push messages) right away, in both cases only if the {@link #isRefreshDue() refresh is due}.
+         */
+        private void touch() {
 
-            setAccessible(delegateField, true);
-            final QuarkusVaadinServletService.QuarkusVaadinServiceDelegate delegate = (QuarkusVaadinServletService.QuarkusVaadinServiceDelegate) delegateField
-                    .get(listener);
-            setAccessible(delegateField, false);
+            this.lastAccessedTime = System.currentTimeMillis();
+            this.refreshPending = true;
+            if (ServletRequestContext.current() == null) {
+                refreshTimeout();
+            }
+        }
 
-            final Field vaadinServiceField = delegate.getClass().getDeclaredField("vaadinService");
-            setAccessible(vaadinServiceField, true);
-            vaadinServiceField.set(delegate, value); // NOSONAR
-            setAccessible(vaadinServiceField, false);
+        private void refreshTimeout() {
 
-            final Field beanManagerField = delegate.getClass().getDeclaredField("beanManager");
-            setAccessible(beanManagerField, true);
-            if (beanManagerField.get(delegate) == null && value != null) {
-                beanManagerField.set(delegate, Arc.container().beanManager()); // NOSONAR
+            if (isRefreshDue()) {
+                final String id = this.inMemorySession.getId();
+                this.sessionManager.write(id, timeoutRequests(), responses -> this.sessionManager.written(id, responses.get(0)));
+            } else {
+                this.refreshPending = false;
             }
-            setAccessible(beanManagerField, false);
+        }
+
+        /**
+         * Checks if the expiry has not been refreshed within the configured fraction of the max inactive interval. The expiry is extended by the
+         * same fraction, so a session never expires in Redis before it has been inactive for the max inactive interval.
+         */
+        private boolean isRefreshDue() {
+
+            final long refreshInterval = (long) (getMaxInactiveInterval() * 1000L * this.sessionManager.redisSessionConfig.getTtlRefreshFraction());
+            return System.currentTimeMillis() - this.lastRefresh >= refreshInterval;
+        }
+
+        /**
+         * Creates the requests recording an access of the session, which update the last access time and extend the expiry of the session.
+         */
+        private List<Request> timeoutRequests() {
+
+            this.refreshPending = false;
+            this.lastRefresh = System.currentTimeMillis();
+            return this.sessionManager.timeoutRequests(this.inMemorySession.getId(), this.lastAccessedTime, getMaxInactiveInterval());
+        }
 
+        private void prepareVaadinSessionForSerialization(final VaadinSession vaadinSession) {
+
+            configureVaadinService(vaadinSession, null);
+        }
+
+        /**
+         * Restores the VaadinService referenced by the UI listeners. The service of the VaadinSession is used, as it is serialized on threads without
+         * a current VaadinService as well. Deserialized VaadinSessions don't know their service yet, they take the current one.
+         */
+        private void configureVaadinSessionForClientRequest(final VaadinSession vaadinSession) {
+
+            final VaadinService vaadinService = vaadinSession.getService();
+            configureVaadinService(vaadinSession, vaadinService != null ? vaadinService : VaadinService.getCurrent());
         }
 
-        private void setAccessible(final Field field, final boolean accessible) {
+        private void configureVaadinService(final VaadinSession vaadinSession, final Object vaadinService) {
 
-            field.setAccessible(accessible);
+            this.vaadinServiceWiring.configure(vaadinSession, vaadinService);
         }
     }
 
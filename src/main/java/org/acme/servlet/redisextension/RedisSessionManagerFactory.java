@@ -24,6 +24,7 @@ public class RedisSessionManagerFactory implements SessionManagerFactory {
     private static final Logger LOG = LoggerFactory.getLogger(RedisSessionManagerFactory.class);
     private final int maxSessions;
     private final boolean expireOldestUnusedSessionOnMax;
+    private final RedisSessionConfig redisSessionConfig;
 
     /**
      * This constructor sets the limit of sessions to be handled by the default {@link InMemorySessionManager}. If old and unused sessions should be
@@ -33,11 +34,15 @@ public class RedisSessionManagerFactory implements SessionManagerFactory {
      * 
      * @param expireOldestUnusedSessionOnMax
      *            Allows the {@link InMemorySessionManager} to remove unused sessions if maxSessions is reached.
+     * @param redisSessionConfig
+     *            the Redis specific settings of the {@link RedisSessionManager}
      */
-    public RedisSessionManagerFactory(final int maxSessions, final boolean expireOldestUnusedSessionOnMax) {
+    public RedisSessionManagerFactory(final int maxSessions, final boolean expireOldestUnusedSessionOnMax,
+            final RedisSessionConfig redisSessionConfig) {
 
         this.maxSessions = maxSessions;
         this.expireOldestUnusedSessionOnMax = expireOldestUnusedSessionOnMax;
+        this.redisSessionConfig = redisSessionConfig;
     }
 
     @Override
@@ -45,9 +50,11 @@ public class RedisSessionManagerFactory implements SessionManagerFactory {
 
         configureVaadinSessionRewriteFilter(deployment);
         LOG.info("Configuring RedisSessionManager");
-        final RedisSessionManager redisSessionManager = new RedisSessionManager(new SessionCookieConfig(), createInMemorySessionManager(deployment));
+        final RedisSessionManager redisSessionManager = new RedisSessionManager(new SessionCookieConfig(), createInMemorySessionManager(deployment),
+                this.redisSessionConfig);
 
-        if (redisSessionManager.isConnectedToRedis()) {
+        // with the circuit breaker, sessions are served from memory until Redis is available
+        if (redisSessionManager.isConnectedToRedis() || this.redisSessionConfig.isCircuitBreaker()) {
             return redisSessionManager;
         }
 
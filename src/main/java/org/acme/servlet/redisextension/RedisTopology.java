@@ -0,0 +1,146 @@
+package org.acme.servlet.redisextension;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.vertx.mutiny.redis.client.Redis;
+
+/**
+ * The Redis endpoints sessions are stored in. Either a single endpoint, which may be a Redis Cluster, or several standalone Redis instances (shards)
+ * the sessions are distributed across by consistent hashing of their ids. Each shard is placed on a hash ring at a number of points derived from its
+ * URI, and a session belongs to the shard of the first point following the hash of its id. Adding or removing a shard only moves the sessions
+ * between its points and their predecessors, and reordering the shards moves none.
+ *
+ * All keys of a session are routed by the session id, so they always end up on the same shard, and share the hash tag of the session id, so they end
+ * up in the same hash slot of a Redis Cluster.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class RedisTopology {
+
+    /**
+     * The number of points of every shard on the hash ring, which spreads the sessions evenly across the shards.
+     */
+    private static final int POINTS_PER_SHARD = 160;
+
+    private final List<Redis> shards;
+    private final boolean cluster;
+    private final boolean ownsShards;
+    private final long[] points;
+    private final Redis[] pointShards;
+
+    /**
+     * Creates a topology with a single endpoint, which is not closed by {@link #close()}.
+     *
+     * @param cluster
+     *            whether the endpoint is a Redis Cluster
+     */
+    RedisTopology(final Redis redis, final boolean cluster) {
+
+        this.shards = Collections.singletonList(redis);
+        this.cluster = cluster;
+        this.ownsShards = false;
+        this.points = new long[] { 0 };
+        this.pointShards = new Redis[] { redis };
+    }
+
+    /**
+     * Creates a topology distributing the sessions across standalone Redis instances, which are closed by {@link #close()}.
+     *
+     * @param uris
+     *            the URIs of the shards, which determine their points on the hash ring
+     * @param shards
+     *            the clients of the shards in the order of their URIs
+     */
+    RedisTopology(final List<String> uris, final List<Redis> shards) {
+
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.cluster = false;
+        this.ownsShards = true;
+
+        final long[][] ring = new long[uris.size() * POINTS_PER_SHARD][];
+        for (int shard = 0; shard < uris.size(); shard++) {
+            for (int point = 0; point < POINTS_PER_SHARD; point++) {
+                ring[shard * POINTS_PER_SHARD + point] = new long[] { hash(uris.get(shard) + "#" + point), shard };
+            }
+        }
+        Arrays.sort(ring, (first, second) -> Long.compare(first[0], second[0]));
+        this.points = new long[ring.length];
+        this.pointShards = new Redis[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            this.points[i] = ring[i][0];
+            this.pointShards[i] = shards.get((int) ring[i][1]);
+        }
+    }
+
+    /**
+     * Gets the endpoint holding the keys of a session.
+     */
+    Redis forSession(final String sessionId) {
+
+        if (this.pointShards.length == 1) {
+            return this.pointShards[0];
+        }
+        final int index = Arrays.binarySearch(this.points, hash(sessionId));
+        final int point = index >= 0 ? index : -index - 1;
+        return this.pointShards[point == this.points.length ? 0 : point];
+    }
+
+    /**
+     * Gets all endpoints, e.g. to list the sessions of all shards.
+     */
+    List<Redis> all() {
+
+        return this.shards;
+    }
+
+    /**
+     * Gets the endpoint used for requests not related to a single session, like publishing session events.
+     */
+    Redis primary() {
+
+        return this.shards.get(0);
+    }
+
+    boolean isCluster() {
+
+        return this.cluster;
+    }
+
+    /**
+     * Checks if the keys of different sessions may be stored on different nodes, so requests can't span the keys of several sessions.
+     */
+    boolean isPartitioned() {
+
+        return this.cluster || this.shards.size() > 1;
+    }
+
+    void close() {
+
+        if (this.ownsShards) {
+            this.shards.forEach(Redis::close);
+        }
+    }
+
+    /**
+     * A 64 bit FNV-1a hash, followed by the finalizer of MurmurHash3, so similar session ids are spread across the whole ring.
+     */
+    static long hash(final String value) {
+
+        long hash = 0xcbf29ce484222325L;
+        for (final byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
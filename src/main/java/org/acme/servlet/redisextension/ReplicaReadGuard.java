@@ -0,0 +1,76 @@
+package org.acme.servlet.redisextension;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps the reads of a session on the primary while a replica may not have caught up with its writes. A session is read from the primary within
+ * the read-your-writes window after every write of this node, and after every write of another node announced on the
+ * {@link SessionInvalidationChannel}. The highest version written within the window is remembered as well, so reads from a replica returning an
+ * older version can be rejected once the window is over.
+ *
+ * Only sessions written within the window are tracked. Older entries are purged once the number of tracked sessions has doubled since the last
+ * purge, so purging costs an amortized constant time per write.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class ReplicaReadGuard {
+
+    private static final int MIN_PURGE_SIZE = 10_000;
+
+    private final long windowMillis;
+    private final ConcurrentMap<String, Write> writes = new ConcurrentHashMap<>();
+    private volatile int purgeSize = MIN_PURGE_SIZE;
+
+    ReplicaReadGuard(final long windowMillis) {
+
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Records a write of a session.
+     *
+     * @param version
+     *            the version written, 0 if unknown
+     */
+    void recordWrite(final String sessionId, final long version) {
+
+        final long now = System.currentTimeMillis();
+        this.writes.merge(sessionId, new Write(now, version), (existing, write) -> new Write(now, Math.max(existing.version, version)));
+        if (this.writes.size() > this.purgeSize) {
+            this.writes.values().removeIf(write -> now - write.time >= this.windowMillis);
+            this.purgeSize = Math.max(MIN_PURGE_SIZE, this.writes.size() * 2);
+        }
+    }
+
+    /**
+     * Checks if a session must be read from the primary, because it has been written within the read-your-writes window.
+     */
+    boolean isWrittenRecently(final String sessionId) {
+
+        final Write write = this.writes.get(sessionId);
+        return write != null && System.currentTimeMillis() - write.time < this.windowMillis;
+    }
+
+    /**
+     * Gets the highest version of a session known to be written, which a replica must have reached to be read from.
+     */
+    long getMinimumVersion(final String sessionId) {
+
+        final Write write = this.writes.get(sessionId);
+        return write == null ? 0 : write.version;
+    }
+
+    private static final class Write {
+
+        private final long time;
+        private final long version;
+
+        private Write(final long time, final long version) {
+
+            this.time = time;
+            this.version = version;
+        }
+    }
+}
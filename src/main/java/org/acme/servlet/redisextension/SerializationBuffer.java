@@ -0,0 +1,62 @@
+package org.acme.servlet.redisextension;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A per-thread, reusable output buffer for serializing session attributes. Reusing the buffer avoids growing a fresh array for every serialized
+ * attribute, which for VaadinSessions of several hundred kilobytes means a lot of young generation garbage on every request.
+ *
+ * Buffers that grew beyond {@link #MAX_RETAINED_CAPACITY} are dropped once their content has been used, so large attributes don't pin memory on
+ * every worker thread for its whole life. Only the small buffers are reused, the large ones are allocated per use.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class SerializationBuffer extends ByteArrayOutputStream {
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+    private static final int MAX_RETAINED_CAPACITY = INITIAL_CAPACITY;
+    private static final ThreadLocal<SerializationBuffer> BUFFERS = ThreadLocal.withInitial(SerializationBuffer::new);
+
+    private SerializationBuffer() {
+
+        super(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Returns the empty buffer of the current thread. The content of the buffer is only valid until the next call of this method on the same thread.
+     *
+     * @return the {@link SerializationBuffer} of the current thread
+     */
+    static SerializationBuffer acquire() {
+
+        SerializationBuffer buffer = BUFFERS.get();
+        if (buffer.buf.length > MAX_RETAINED_CAPACITY) {
+            buffer = new SerializationBuffer();
+            BUFFERS.set(buffer);
+        }
+        buffer.reset();
+        return buffer;
+    }
+
+    /**
+     * Signals that the content of the buffer has been used. The buffer is dropped if it grew beyond {@link #MAX_RETAINED_CAPACITY}, the next
+     * {@link #acquire()} on the same thread returns a new one.
+     */
+    void release() {
+
+        if (this.buf.length > MAX_RETAINED_CAPACITY && BUFFERS.get() == this) {
+            BUFFERS.remove();
+        }
+    }
+
+    /**
+     * Gets the backing array of the buffer without copying it. Only the first {@link #size()} bytes are valid.
+     *
+     * @return the backing array
+     */
+    byte[] array() {
+
+        return this.buf;
+    }
+}
@@ -0,0 +1,52 @@
+package org.acme.servlet.redisextension;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Serializes session attributes into the values stored in Redis. The serializer in use is selected with the environment variable
+ * <CODE>ch.inacta.vaadin.redisCache.serializer</CODE>, which is either <CODE>jdk</CODE> (the default), <CODE>compact</CODE> or the fully qualified
+ * class name of a custom implementation with a public no-arg constructor.
+ *
+ * Every stored value starts with the {@link #getFormatId() format id} of the serializer that wrote it, so nodes are able to read values of all known
+ * formats while a cluster is migrated from one serializer to another.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+public interface SessionAttributeSerializer {
+
+    /**
+     * Gets the id identifying the format written by this serializer. Ids 1 and 2 are used by the built-in serializers, custom serializers must use an
+     * id between 3 and 15; the upper bits of the header are reserved.
+     *
+     * @return the format id
+     */
+    byte getFormatId();
+
+    /**
+     * Writes the value to the given stream. Implementations must not close the stream.
+     *
+     * @param value
+     *            the attribute value
+     * @param outputStream
+     *            the stream to write to
+     * @throws IOException
+     *             if the value can't be serialized
+     */
+    void serialize(Object value, OutputStream outputStream) throws IOException;
+
+    /**
+     * Reads a value written by {@link #serialize(Object, OutputStream)}.
+     *
+     * @param inputStream
+     *            the stream to read from, positioned after the format id
+     * @return the attribute value
+     * @throws IOException
+     *             if the value can't be read
+     * @throws ClassNotFoundException
+     *             if a class of the serialized graph is unknown
+     */
+    Object deserialize(InputStream inputStream) throws IOException, ClassNotFoundException;
+}
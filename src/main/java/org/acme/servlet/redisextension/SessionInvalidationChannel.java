@@ -0,0 +1,221 @@
+package org.acme.servlet.redisextension;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.smallrye.mutiny.Uni;
+import io.vertx.mutiny.redis.client.Command;
+import io.vertx.mutiny.redis.client.Redis;
+import io.vertx.mutiny.redis.client.RedisConnection;
+import io.vertx.mutiny.redis.client.Request;
+import io.vertx.mutiny.redis.client.Response;
+
+/**
+ * Keeps the in-memory session copies of the nodes of a deployment coherent. Every node publishes the changes it writes to Redis on a channel per
+ * deployment and evicts or marks stale its own copies when another node publishes a change. Expired key events of Redis are subscribed as well, so
+ * sessions that expired in Redis are dropped locally.
+ *
+ * Expired key events are only sent by Redis if they are enabled on the server, e.g. with <CODE>notify-keyspace-events Ex</CODE>.
+ *
+ * Events are published without waiting for Redis, and are handled on a dedicated thread, never on the event loop of the Redis client.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class SessionInvalidationChannel {
+
+    private static final String CHANNEL_PREFIX = "session-events:";
+    private static final String EXPIRED_EVENTS_PATTERN = "__keyevent@*__:expired";
+    private static final String MESSAGE = "message";
+    private static final String PATTERN_MESSAGE = "pmessage";
+    private static final String SEPARATOR = "|";
+    private static final Duration RESUBSCRIBE_DELAY = Duration.ofSeconds(5);
+    private static final Logger LOG = LoggerFactory.getLogger(SessionInvalidationChannel.class);
+
+    /**
+     * The kinds of published session events.
+     */
+    private enum EventType {
+        /**
+         * An attribute was written or removed.
+         */
+        CHANGED,
+        /**
+         * The session was invalidated.
+         */
+        INVALIDATED,
+        /**
+         * The session id was changed, so copies stored under the old id are obsolete.
+         */
+        RENAMED,
+        /**
+         * The ownership lease of the session was taken over from another node.
+         */
+        TAKEN_OVER
+    }
+
+    /**
+     * Receives the events published by other nodes.
+     */
+    interface Handler {
+
+        void attributeChanged(String sessionId, String attribute, long version);
+
+        void sessionRemoved(String sessionId);
+
+        void sessionTakenOver(String sessionId, long version);
+
+        void keyExpired(String key);
+    }
+
+    private final Redis redis;
+    private final Handler handler;
+    private final String channel;
+    private final String nodeId;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        final Thread thread = new Thread(runnable, "redis-session-events");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile RedisConnection connection;
+    private volatile boolean stopped;
+
+    SessionInvalidationChannel(final Redis redis, final String deploymentName, final String nodeId, final Handler handler) {
+
+        this.redis = redis;
+        this.nodeId = nodeId;
+        this.handler = handler;
+        this.channel = CHANNEL_PREFIX + deploymentName;
+    }
+
+    void start() {
+
+        this.stopped = false;
+        subscribe();
+    }
+
+    void stop() {
+
+        this.stopped = true;
+        final RedisConnection subscription = this.connection;
+        if (subscription != null) {
+            subscription.close();
+        }
+        this.executor.shutdown();
+    }
+
+    void publishChanges(final String sessionId, final long version, final Collection<String> attributes) {
+
+        final List<Request> requests = new ArrayList<>();
+        for (final String attribute : attributes) {
+            requests.add(publish(EventType.CHANGED, sessionId, version, attribute));
+        }
+        if (!requests.isEmpty()) {
+            this.redis.batch(requests).subscribe().with(responses -> {
+            }, e -> LOG.warn("Failed to publish the changes of session {}", sessionId, e));
+        }
+    }
+
+    void publishInvalidation(final String sessionId) {
+
+        send(publish(EventType.INVALIDATED, sessionId, 0, ""));
+    }
+
+    void publishRename(final String oldSessionId) {
+
+        send(publish(EventType.RENAMED, oldSessionId, 0, ""));
+    }
+
+    void publishTakeover(final String sessionId, final long version) {
+
+        send(publish(EventType.TAKEN_OVER, sessionId, version, ""));
+    }
+
+    private Request publish(final EventType type, final String sessionId, final long version, final String attribute) {
+
+        return Request.cmd(Command.PUBLISH).arg(this.channel)
+                .arg(String.join(SEPARATOR, this.nodeId, type.name(), sessionId, String.valueOf(version), attribute));
+    }
+
+    private void send(final Request request) {
+
+        this.redis.send(request).subscribe().with(response -> {
+        }, e -> LOG.warn("Failed to publish session event", e));
+    }
+
+    private void subscribe() {
+
+        if (this.stopped) {
+            return;
+        }
+        this.redis.connect().subscribe().with(subscription -> {
+            this.connection = subscription;
+            subscription.handler(this::receive);
+            subscription.exceptionHandler(e -> LOG.warn("Session event subscription failed", e));
+            subscription.endHandler(ended -> resubscribe());
+            subscription.send(Request.cmd(Command.SUBSCRIBE).arg(this.channel)).subscribe().with(response -> {
+            }, e -> LOG.warn("Failed to subscribe to session events", e));
+            subscription.send(Request.cmd(Command.PSUBSCRIBE).arg(EXPIRED_EVENTS_PATTERN)).subscribe().with(response -> {
+            }, e -> LOG.warn("Failed to subscribe to expired key events", e));
+        }, e -> {
+            LOG.warn("Failed to connect to redis for session events", e);
+            resubscribe();
+        });
+    }
+
+    private void resubscribe() {
+
+        if (!this.stopped) {
+            Uni.createFrom().voidItem().onItem().delayIt().by(RESUBSCRIBE_DELAY).subscribe().with(delayed -> subscribe());
+        }
+    }
+
+    private void receive(final Response response) {
+
+        if (response == null || response.size() < 3) {
+            return;
+        }
+        final String kind = response.get(0).toString();
+        if (MESSAGE.equals(kind)) {
+            final String message = response.get(2).toString();
+            this.executor.execute(() -> handleMessage(message));
+        } else if (PATTERN_MESSAGE.equals(kind) && response.size() > 3) {
+            final String key = response.get(3).toString();
+            this.executor.execute(() -> this.handler.keyExpired(key));
+        }
+    }
+
+    private void handleMessage(final String message) {
+
+        final String[] parts = message.split("\\" + SEPARATOR, 5);
+        if (parts.length < 5 || this.nodeId.equals(parts[0])) {
+            return;
+        }
+        try {
+            switch (EventType.valueOf(parts[1])) {
+                case CHANGED:
+                    this.handler.attributeChanged(parts[2], parts[4], Long.parseLong(parts[3]));
+                    break;
+                case INVALIDATED:
+                case RENAMED:
+                    this.handler.sessionRemoved(parts[2]);
+                    break;
+                case TAKEN_OVER:
+                    this.handler.sessionTakenOver(parts[2], Long.parseLong(parts[3]));
+                    break;
+                default:
+                    break;
+            }
+        } catch (final RuntimeException e) {
+            LOG.warn("Failed to handle session event {}", message, e);
+        }
+    }
+}
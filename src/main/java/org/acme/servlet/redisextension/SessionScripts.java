@@ -0,0 +1,139 @@
+package org.acme.servlet.redisextension;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.vertx.mutiny.redis.client.Command;
+import io.vertx.mutiny.redis.client.Request;
+
+/**
+ * The Lua scripts executing the multi step session operations atomically in a single round trip. Scripts are called by their SHA1 digest with
+ * EVALSHA. They are loaded with SCRIPT LOAD when the session manager starts, and again whenever Redis answers with a NOSCRIPT error, e.g. after a
+ * restart or failover.
+ *
+ * The scripts only access the keys of a single session, which share the hash tag of the session id, so they can be called in a Redis Cluster.
+ * Updates of the session index are sent alongside, as the index is a separate key.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class SessionScripts {
+
+    /**
+     * Writes and removes fields of a session hash, optionally increments its version field and sets the expiry if the session has none yet. Unless
+     * the session is created, nothing is written if the session hash does not exist, so a node still holding a copy of a session that has been
+     * invalidated by another node or has expired can't bring it back.
+     *
+     * KEYS[1]: the session key. ARGV[1]: the time to live in milliseconds, not set if not positive. ARGV[2]: the name of the version field, empty to
+     * leave the version unchanged. ARGV[3]: 1 to create the session hash if it does not exist, 0 otherwise. ARGV[4]: the number n of fields to
+     * write, followed by n name and value pairs and the names of the fields to remove. Returns the new version, 0 if it was left unchanged, or nil if
+     * the session does not exist.
+     */
+    static final Script WRITE_FIELDS = new Script(String.join("\n",
+            "local key = KEYS[1]",
+            "if ARGV[3] ~= '1' and redis.call('EXISTS', key) == 0 then return false end",
+            "local count = tonumber(ARGV[4])",
+            "if count > 0 then redis.call('HSET', key, unpack(ARGV, 5, 4 + 2 * count)) end",
+            "if #ARGV > 4 + 2 * count then redis.call('HDEL', key, unpack(ARGV, 5 + 2 * count)) end",
+            "local version = 0",
+            "if ARGV[2] ~= '' then version = redis.call('HINCRBY', key, ARGV[2], 1) end",
+            "if tonumber(ARGV[1]) > 0 and redis.call('PTTL', key) < 0 then redis.call('PEXPIRE', key, ARGV[1]) end",
+            "return version"));
+
+    /**
+     * Moves a session to a new key, keeping its expiry. Returns 0 without failing if the session does not exist. Both keys must be on the same node,
+     * so this is only used on a single endpoint.
+     *
+     * KEYS[1]: the old session key. KEYS[2]: the new session key.
+     */
+    static final Script RENAME_SESSION = new Script(String.join("\n",
+            "if redis.call('EXISTS', KEYS[1]) == 0 then return 0 end",
+            "redis.call('RENAME', KEYS[1], KEYS[2])",
+            "return 1"));
+
+    /**
+     * Takes or renews the ownership lease of a session. Returns 1 if the lease was held by the calling node already, so no other node can have
+     * owned the session in between, and 0 if it had lapsed. If it was held by another node, the version of the session is incremented, so the
+     * previous owner notices the takeover by its version checks, and the negated new version is returned.
+     *
+     * KEYS[1]: the lease key. KEYS[2]: the session key. ARGV[1]: the id of the calling node. ARGV[2]: the lease time in milliseconds. ARGV[3]: the
+     * name of the version field.
+     */
+    static final Script ACQUIRE_LEASE = new Script(String.join("\n",
+            "local holder = redis.call('GET', KEYS[1])",
+            "redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2])",
+            "if holder == ARGV[1] then return 1 end",
+            "if holder and redis.call('EXISTS', KEYS[2]) == 1 then return -redis.call('HINCRBY', KEYS[2], ARGV[3], 1) end",
+            "return 0"));
+
+    static final List<Script> ALL = Collections.unmodifiableList(Arrays.asList(WRITE_FIELDS, RENAME_SESSION, ACQUIRE_LEASE));
+
+    private static final String NO_SCRIPT_ERROR = "NOSCRIPT";
+
+    private SessionScripts() {
+
+    }
+
+    /**
+     * Checks if a failure has been caused by calling a script that is not loaded in Redis.
+     */
+    static boolean isNoScriptError(final Throwable failure) {
+
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause.getMessage() != null && cause.getMessage().startsWith(NO_SCRIPT_ERROR)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static final class Script {
+
+        private final String source;
+        private final String sha;
+
+        private Script(final String source) {
+
+            this.source = source;
+            this.sha = sha1(source);
+        }
+
+        /**
+         * Creates the request loading this script into Redis.
+         */
+        Request load() {
+
+            return Request.cmd(Command.SCRIPT).arg("LOAD").arg(this.source);
+        }
+
+        /**
+         * Creates a request calling this script with the given keys. The arguments of the script are added to the returned request.
+         */
+        Request call(final String... keys) {
+
+            final Request request = Request.cmd(Command.EVALSHA).arg(this.sha).arg(keys.length);
+            for (final String key : keys) {
+                request.arg(key);
+            }
+            return request;
+        }
+
+        private static String sha1(final String source) {
+
+            try {
+                final byte[] digest = MessageDigest.getInstance("SHA-1").digest(source.getBytes(StandardCharsets.UTF_8));
+                final StringBuilder hex = new StringBuilder(digest.length * 2);
+                for (final byte b : digest) {
+                    hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+                }
+                return hex.toString();
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-1 is not available", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.acme.servlet.redisextension;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the serialized fields of sessions whose in-memory copy has been dropped in a memory-mapped file, so they can be restored without
+ * loading them from Redis. The fields are stored off-heap and cost no garbage collection.
+ *
+ * The file is an append log. Each record holds the id of a session and its fields, and the positions of the live records are indexed on the heap.
+ * Records are removed from the index when they are read or replaced, and the space of removed records is reclaimed by compacting the log once it is
+ * full. If there is still not enough space, the oldest records are dropped. The file is recreated on every start, as its records may be stale by
+ * then.
+ *
+ * Record layout: the length of the record, the length and bytes of the session id, the number of fields and for every field the length and bytes
+ * of its name and value.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class SessionSpillStore {
+
+    /**
+     * Records larger than this fraction of the file are not stored, so a single session can't displace all others.
+     */
+    private static final int MAX_RECORD_FRACTION = 4;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    /**
+     * The positions of the live records in the order they were appended.
+     */
+    private final LinkedHashMap<String, Integer> positions = new LinkedHashMap<>();
+    private int writePosition;
+    private long liveBytes;
+
+    SessionSpillStore(final Path file, final long maxBytes) throws IOException {
+
+        this.file = file;
+        this.capacity = (int) Math.min(maxBytes, Integer.MAX_VALUE);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, this.capacity);
+    }
+
+    /**
+     * Stores the fields of a session, replacing any fields stored before.
+     *
+     * @return <CODE>false</CODE> if the session is too large to be stored
+     */
+    synchronized boolean put(final String sessionId, final Map<String, byte[]> fields) {
+
+        remove(sessionId);
+        final byte[] id = sessionId.getBytes(StandardCharsets.UTF_8);
+        long size = 3 * Integer.BYTES + id.length;
+        for (final Map.Entry<String, byte[]> field : fields.entrySet()) {
+            size += 2 * Integer.BYTES + field.getKey().getBytes(StandardCharsets.UTF_8).length + field.getValue().length;
+        }
+        if (size > this.capacity / MAX_RECORD_FRACTION) {
+            return false;
+        }
+        if (this.writePosition + size > this.capacity) {
+            makeRoom(size);
+        }
+
+        final ByteBuffer record = this.buffer.duplicate();
+        record.position(this.writePosition);
+        record.putInt((int) size).putInt(id.length).put(id).putInt(fields.size());
+        for (final Map.Entry<String, byte[]> field : fields.entrySet()) {
+            final byte[] name = field.getKey().getBytes(StandardCharsets.UTF_8);
+            record.putInt(name.length).put(name).putInt(field.getValue().length).put(field.getValue());
+        }
+        this.positions.put(sessionId, this.writePosition);
+        this.writePosition += (int) size;
+        this.liveBytes += size;
+        return true;
+    }
+
+    /**
+     * Removes the fields of a session from the store and returns them.
+     *
+     * @return the fields in the order they were stored, <CODE>null</CODE> if the session is not stored
+     */
+    synchronized Map<String, byte[]> take(final String sessionId) {
+
+        final Integer position = this.positions.remove(sessionId);
+        if (position == null) {
+            return null;
+        }
+        final ByteBuffer record = this.buffer.duplicate();
+        record.position(position);
+        this.liveBytes -= record.getInt();
+        final int idLength = record.getInt();
+        record.position(record.position() + idLength);
+        final int fieldCount = record.getInt();
+        final Map<String, byte[]> fields = new LinkedHashMap<>();
+        for (int i = 0; i < fieldCount; i++) {
+            final String name = new String(read(record), StandardCharsets.UTF_8);
+            fields.put(name, read(record));
+        }
+        return fields;
+    }
+
+    synchronized void remove(final String sessionId) {
+
+        final Integer position = this.positions.remove(sessionId);
+        if (position != null) {
+            this.liveBytes -= this.buffer.getInt(position);
+        }
+    }
+
+    synchronized void close() {
+
+        this.positions.clear();
+        try {
+            this.channel.close();
+            Files.deleteIfExists(this.file);
+        } catch (final IOException e) {
+            // the file is recreated on the next start
+        }
+    }
+
+    /**
+     * Drops the oldest records until the live records and a record of the given size fit into the file, and compacts the live records to its
+     * start.
+     */
+    private void makeRoom(final long size) {
+
+        final Iterator<Integer> oldest = this.positions.values().iterator();
+        while (this.liveBytes + size > this.capacity && oldest.hasNext()) {
+            this.liveBytes -= this.buffer.getInt(oldest.next());
+            oldest.remove();
+        }
+
+        int compactedPosition = 0;
+        for (final Map.Entry<String, Integer> entry : this.positions.entrySet()) {
+            final int position = entry.getValue();
+            final int length = this.buffer.getInt(position);
+            if (position != compactedPosition) {
+                final byte[] record = new byte[length];
+                this.buffer.duplicate().position(position).get(record);
+                this.buffer.duplicate().position(compactedPosition).put(record);
+                entry.setValue(compactedPosition);
+            }
+            compactedPosition += length;
+        }
+        this.writePosition = compactedPosition;
+    }
+
+    private static byte[] read(final ByteBuffer record) {
+
+        final byte[] bytes = new byte[record.getInt()];
+        record.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,208 @@
+package org.acme.servlet.redisextension;
+
+import static java.util.Base64.getDecoder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+
+/**
+ * Encodes session attributes into the values stored in Redis and decodes them again. Every value starts with a header byte holding the format id of
+ * the {@link SessionAttributeSerializer} that wrote it. Values are always written with the configured serializer, but can be read with any known
+ * serializer, which allows a rolling migration between serializers.
+ *
+ * Values whose serialized form is larger than the configured compression threshold are compressed with Deflate at its fastest level, which is
+ * marked in the upper bits of the header byte. Compressed values are only stored if they are actually smaller.
+ *
+ * Values written before the header was introduced are recognized as well: raw Java serialization streams start with the stream magic
+ * <CODE>0xACED</CODE> and Base64 encoded ones with "rO0".
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class SessionValueCodec {
+
+    private static final int FORMAT_ID_MASK = 0x0F;
+    /**
+     * The compression bits of the header. <CODE>0x20</CODE> is reserved for LZ4, once an implementation is available on the classpath.
+     */
+    private static final int COMPRESSION_MASK = 0x30;
+    private static final int UNCOMPRESSED = 0x00;
+    private static final int DEFLATE = 0x10;
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final byte LEGACY_STREAM_MAGIC = (byte) 0xAC;
+    private static final byte[] LEGACY_BASE64_PREFIX = { 'r', 'O', '0' };
+
+    private final SessionAttributeSerializer serializer;
+    private final SessionAttributeSerializer[] readers = new SessionAttributeSerializer[FORMAT_ID_MASK + 1];
+    private final SessionAttributeSerializer legacyReader = new JdkSessionAttributeSerializer();
+    private final int compressionThreshold;
+
+    /**
+     * @param serializer
+     *            the serializer used to write values
+     * @param additionalReaders
+     *            further serializers used to read values in other formats
+     * @param compressionThreshold
+     *            the size in bytes above which serialized values are compressed, a negative value disables compression
+     */
+    SessionValueCodec(final SessionAttributeSerializer serializer, final Collection<SessionAttributeSerializer> additionalReaders,
+            final int compressionThreshold) {
+
+        this.serializer = serializer;
+        this.compressionThreshold = compressionThreshold;
+        for (final SessionAttributeSerializer reader : additionalReaders) {
+            register(reader);
+        }
+        register(serializer);
+    }
+
+    /**
+     * Registers a reader for its format id. Ids of the built-in formats can't be taken by custom serializers, and two serializers can't share an id.
+     */
+    private void register(final SessionAttributeSerializer reader) {
+
+        final int formatId = reader.getFormatId();
+        if (formatId < 1 || formatId > FORMAT_ID_MASK) {
+            throw new IllegalArgumentException("Invalid format id " + formatId + " of session attribute serializer " + reader.getClass().getName());
+        }
+        if (formatId == JdkSessionAttributeSerializer.FORMAT_ID && reader.getClass() != JdkSessionAttributeSerializer.class
+                || formatId == CompactSessionAttributeSerializer.FORMAT_ID && reader.getClass() != CompactSessionAttributeSerializer.class) {
+            // values written by other nodes in the built-in format would be misread
+            throw new IllegalArgumentException("Format id " + formatId + " is reserved for a built-in serializer, session attribute serializer "
+                    + reader.getClass().getName() + " must use an id between 3 and " + FORMAT_ID_MASK);
+        }
+        final SessionAttributeSerializer registered = this.readers[formatId];
+        if (registered != null && registered.getClass() != reader.getClass()) {
+            throw new IllegalArgumentException("Session attribute serializers " + registered.getClass().getName() + " and "
+                    + reader.getClass().getName() + " use the same format id " + formatId);
+        }
+        this.readers[formatId] = reader;
+    }
+
+    void encode(final Object value, final OutputStream outputStream) throws IOException {
+
+        outputStream.write(this.serializer.getFormatId());
+        this.serializer.serialize(value, outputStream);
+    }
+
+    /**
+     * Creates the value to store in Redis from an attribute {@link #encode(Object, OutputStream) encoded} into the given buffer, compressing it if it
+     * exceeds the compression threshold.
+     *
+     * @param buffer
+     *            the buffer holding the encoded attribute
+     * @return the value to store
+     */
+    byte[] toValue(final SerializationBuffer buffer) {
+
+        if (mayCompress(buffer)) {
+            final byte[] compressed = deflate(buffer.array(), buffer.size() - 1);
+            if (compressed != null) {
+                return compressed;
+            }
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Checks if the value created from an encoded attribute may be compressed. Otherwise, the value is the content of the buffer as is.
+     */
+    boolean mayCompress(final SerializationBuffer buffer) {
+
+        return this.compressionThreshold >= 0 && buffer.size() - 1 > this.compressionThreshold;
+    }
+
+    /**
+     * Compresses the payload following the header byte. Returns <CODE>null</CODE> if the compressed value would not be smaller than the original one.
+     */
+    private static byte[] deflate(final byte[] encoded, final int payloadLength) {
+
+        final Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(encoded, 1, payloadLength);
+        deflater.finish();
+
+        final byte[] compressed = new byte[payloadLength];
+        compressed[0] = (byte) (encoded[0] | DEFLATE);
+        int length = 1;
+        while (!deflater.finished() && length < compressed.length) {
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return deflater.finished() ? Arrays.copyOf(compressed, length) : null;
+    }
+
+    /**
+     * Compresses a value read from Redis to keep it in memory, if it is larger than the given size and not compressed yet. Legacy values have no
+     * header and are left unchanged, as are values that would not get smaller. The result can always be {@link #decode(ByteBuf) decoded}.
+     *
+     * @param value
+     *            the value read from Redis
+     * @param minimumSize
+     *            the size in bytes up to which values are not compressed
+     * @return the compressed value, or the given value if it is not compressed
+     */
+    byte[] compact(final byte[] value, final int minimumSize) {
+
+        // the first bytes of legacy values have compression bits set, so they are left unchanged as well
+        if (value.length <= minimumSize || (value[0] & COMPRESSION_MASK) != UNCOMPRESSED) {
+            return value;
+        }
+        final byte[] compressed = deflate(value, value.length - 1);
+        return compressed != null ? compressed : value;
+    }
+
+    Object decode(final ByteBuf data) throws IOException, ClassNotFoundException {
+
+        if (!data.isReadable()) {
+            throw new IOException("Empty session attribute value");
+        }
+        final int start = data.readerIndex();
+        final byte header = data.getByte(start);
+        final InputStream inputStream = new ByteBufInputStream(data.duplicate());
+
+        if (header == LEGACY_STREAM_MAGIC) {
+            return this.legacyReader.deserialize(inputStream);
+        }
+        if (hasLegacyBase64Prefix(data, start)) {
+            return this.legacyReader.deserialize(getDecoder().wrap(inputStream));
+        }
+
+        final SessionAttributeSerializer reader = this.readers[header & FORMAT_ID_MASK];
+        if (reader == null) {
+            throw new IOException("Unknown session attribute format " + (header & FORMAT_ID_MASK));
+        }
+        inputStream.skip(1);
+
+        switch (header & COMPRESSION_MASK) {
+            case UNCOMPRESSED:
+                return reader.deserialize(inputStream);
+            case DEFLATE:
+                try (final InputStream inflaterInputStream = new InflaterInputStream(inputStream)) {
+                    return reader.deserialize(inflaterInputStream);
+                }
+            default:
+                throw new IOException("Unknown session attribute compression " + (header & COMPRESSION_MASK));
+        }
+    }
+
+    private static boolean hasLegacyBase64Prefix(final ByteBuf data, final int start) {
+
+        if (data.readableBytes() < LEGACY_BASE64_PREFIX.length) {
+            return false;
+        }
+        for (int i = 0; i < LEGACY_BASE64_PREFIX.length; i++) {
+            if (data.getByte(start + i) != LEGACY_BASE64_PREFIX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
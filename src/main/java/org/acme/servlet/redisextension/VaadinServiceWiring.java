@@ -0,0 +1,157 @@
+package org.acme.servlet.redisextension;
+
+import java.lang.ref.Reference;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.urosporo.quarkus.vaadin.cdi.QuarkusVaadinServletService;
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.server.VaadinSession;
+
+import io.quarkus.arc.Arc;
+
+/**
+ * Sets the VaadinService referenced by the UI listeners of the QuarkusVaadinServletService. The reference is removed before a VaadinSession is
+ * serialized and restored afterwards, as well as after it has been deserialized.
+ *
+ * The private fields involved are resolved once per class by {@link FieldAccessor}s. The service delegates found in the listeners of a UI are
+ * remembered together with the listener wrappers they were found in, so the delegates are only searched again if a wrapper has been added, removed
+ * or replaced, and UIs that already reference the requested service are skipped. The VaadinSession lock is held while the listeners are read, as
+ * they are changed by the threads accessing the UIs.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class VaadinServiceWiring {
+
+    private static final String REFLECTION_ERROR_MESSAGE = "Unable to access QuarkusVaadinServletService.QuarkusVaadinServiceDelegate through reflection. Consider checking fieldNames";
+    private static final FieldAccessor EVENT_BUS = new FieldAccessor("eventBus");
+    private static final FieldAccessor COMPONENT_EVENT_DATA = new FieldAccessor("componentEventData");
+    private static final FieldAccessor LISTENER = new FieldAccessor("listener");
+    private static final FieldAccessor DELEGATE = new FieldAccessor("delegate");
+    private static final FieldAccessor VAADIN_SERVICE = new FieldAccessor("vaadinService");
+    private static final FieldAccessor BEAN_MANAGER = new FieldAccessor("beanManager");
+    private static final Logger LOG = LoggerFactory.getLogger(VaadinServiceWiring.class);
+
+    private final Map<UI, UiWiring> wiredUis = Collections.synchronizedMap(new WeakHashMap<>());
+
+    void configure(final VaadinSession vaadinSession, final Object vaadinService) {
+
+        if (vaadinSession.getSession() == null) {
+            // Session configuration from Vaadin is not finished yet
+            return;
+        }
+
+        vaadinSession.lock();
+        try {
+            for (final UI ui : vaadinSession.getUIs()) {
+                try {
+                    configure(ui, vaadinService);
+                } catch (final ReflectiveOperationException e) {
+                    LOG.error(REFLECTION_ERROR_MESSAGE, e);
+                }
+            }
+        } finally {
+            vaadinSession.unlock();
+        }
+    }
+
+    private void configure(final UI ui, final Object vaadinService) throws ReflectiveOperationException {
+
+        final Map<?, ?> componentEventData = (Map<?, ?>) COMPONENT_EVENT_DATA.get(EVENT_BUS.get(ui));
+        final List<Object> listenerWrappers = listenerWrappers(componentEventData);
+
+        UiWiring wiring = this.wiredUis.get(ui);
+        if (wiring == null || !sameInstances(wiring.listenerWrappers, listenerWrappers)) {
+            wiring = new UiWiring(listenerWrappers, findServiceDelegates(listenerWrappers));
+            this.wiredUis.put(ui, wiring);
+        } else if (wiring.wired && wiring.vaadinService == vaadinService) {
+            return;
+        }
+
+        for (final QuarkusVaadinServletService.QuarkusVaadinServiceDelegate delegate : wiring.delegates) {
+            setVaadinService(delegate, vaadinService);
+        }
+        wiring.vaadinService = vaadinService;
+        wiring.wired = true;
+    }
+
+    /**
+     * Collects all listener wrappers of a UI.
+     */
+    private static List<Object> listenerWrappers(final Map<?, ?> componentEventData) {
+
+        final List<Object> listenerWrappers = new ArrayList<>();
+        for (final Object wrappers : componentEventData.values()) {
+            listenerWrappers.addAll((Collection<?>) wrappers);
+        }
+        return listenerWrappers;
+    }
+
+    /**
+     * Compares the remembered listener wrappers with the current ones by their identities, so a wrapper replaced by an equal one counts as a
+     * change.
+     */
+    private static boolean sameInstances(final List<Reference<Object>> remembered, final List<Object> current) {
+
+        if (remembered.size() != current.size()) {
+            return false;
+        }
+        for (int i = 0; i < remembered.size(); i++) {
+            if (remembered.get(i).get() != current.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static List<QuarkusVaadinServletService.QuarkusVaadinServiceDelegate> findServiceDelegates(final List<Object> listenerWrappers) {
+
+        final List<QuarkusVaadinServletService.QuarkusVaadinServiceDelegate> delegates = new ArrayList<>();
+        for (final Object listenerWrapper : listenerWrappers) {
+            try {
+                final Object listener = LISTENER.get(listenerWrapper);
+                if (listener.getClass().getName().contains("QuarkusVaadinServletService")) {
+                    delegates.add((QuarkusVaadinServletService.QuarkusVaadinServiceDelegate) DELEGATE.get(listener));
+                }
+            } catch (final ReflectiveOperationException e) {
+                LOG.error(REFLECTION_ERROR_MESSAGE, e);
+            }
+        }
+        return delegates;
+    }
+
+    private static void setVaadinService(final QuarkusVaadinServletService.QuarkusVaadinServiceDelegate delegate, final Object vaadinService)
+            throws ReflectiveOperationException {
+
+        VAADIN_SERVICE.set(delegate, vaadinService);
+        if (BEAN_MANAGER.get(delegate) == null && vaadinService != null) {
+            BEAN_MANAGER.set(delegate, Arc.container().beanManager());
+        }
+    }
+
+    private static final class UiWiring {
+
+        /**
+         * Weakly referenced, as the listeners reference the UI, which is the weak key of the wiring.
+         */
+        private final List<Reference<Object>> listenerWrappers = new ArrayList<>();
+        private final List<QuarkusVaadinServletService.QuarkusVaadinServiceDelegate> delegates;
+        private Object vaadinService;
+        private boolean wired;
+
+        private UiWiring(final List<Object> listenerWrappers, final List<QuarkusVaadinServletService.QuarkusVaadinServiceDelegate> delegates) {
+
+            listenerWrappers.forEach(listenerWrapper -> this.listenerWrappers.add(new WeakReference<>(listenerWrapper)));
+            this.delegates = delegates;
+        }
+    }
+}
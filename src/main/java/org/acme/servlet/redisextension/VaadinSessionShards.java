@@ -0,0 +1,180 @@
+package org.acme.servlet.redisextension;
+
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.vaadin.flow.component.UI;
+import com.vaadin.flow.server.VaadinSession;
+
+/**
+ * Splits a VaadinSession into its shell and one shard per UI, so the UIs of a session can be written separately. The shell is the VaadinSession
+ * with every UI replaced by a {@link UiReference}, and a shard is a UI with its VaadinSession replaced by a {@link SessionReference}.
+ *
+ * When the shell is read, every UI reference is resolved by reading the shard of the UI. This happens while the VaadinSession is read, which is
+ * the current VaadinSession during that time, so the session references of the shards are resolved to it. References between UIs are not
+ * supported, such VaadinSessions are written as a whole.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+final class VaadinSessionShards {
+
+    private VaadinSessionShards() {
+
+    }
+
+    /**
+     * Reads the shard of a UI.
+     */
+    interface ShardReader {
+
+        UI read(int uiId) throws IOException, ClassNotFoundException;
+    }
+
+    /**
+     * Stands in for a UI within the shell of a VaadinSession.
+     */
+    static final class UiReference implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int uiId;
+
+        private UiReference(final int uiId) {
+
+            this.uiId = uiId;
+        }
+    }
+
+    /**
+     * Stands in for the VaadinSession within the shard of a UI.
+     */
+    enum SessionReference {
+        INSTANCE
+    }
+
+    /**
+     * Replaces the UIs of a VaadinSession while its shell is written.
+     */
+    static final class ShellWriter extends ObjectSubstitution {
+
+        private final Set<UI> replacedUis = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        @Override
+        protected Object replace(final Object object) {
+
+            if (object instanceof UI) {
+                this.replacedUis.add((UI) object);
+                return new UiReference(((UI) object).getUIId());
+            }
+            return object;
+        }
+
+        /**
+         * Checks if all given UIs have been replaced, which is not the case if the serializer does not support substitutions.
+         */
+        boolean replacedAll(final Iterable<UI> uis) {
+
+            for (final UI ui : uis) {
+                if (!this.replacedUis.contains(ui)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Replaces the VaadinSession while the shard of a UI is written.
+     */
+    static final class ShardWriter extends ObjectSubstitution {
+
+        private final UI ui;
+        private final VaadinSession vaadinSession;
+        private boolean referencesOtherUis;
+
+        ShardWriter(final UI ui, final VaadinSession vaadinSession) {
+
+            this.ui = ui;
+            this.vaadinSession = vaadinSession;
+        }
+
+        @Override
+        protected Object replace(final Object object) {
+
+            if (object == this.vaadinSession) {
+                return SessionReference.INSTANCE;
+            }
+            if (object instanceof UI && object != this.ui) {
+                this.referencesOtherUis = true;
+            }
+            return object;
+        }
+
+        boolean referencesOtherUis() {
+
+            return this.referencesOtherUis;
+        }
+    }
+
+    /**
+     * Resolves the UI references while the shell of a VaadinSession is read. Every shard is read once.
+     */
+    static final class ShellReader extends ObjectSubstitution {
+
+        private final ShardReader shardReader;
+        private final Map<Integer, UI> uis = new HashMap<>();
+
+        ShellReader(final ShardReader shardReader) {
+
+            this.shardReader = shardReader;
+        }
+
+        @Override
+        protected Object resolve(final Object object) throws IOException {
+
+            if (!(object instanceof UiReference)) {
+                return object;
+            }
+            final int uiId = ((UiReference) object).uiId;
+            UI ui = this.uis.get(uiId);
+            if (ui == null) {
+                try {
+                    ui = apply(new ShardResolver(), () -> this.shardReader.read(uiId));
+                } catch (final ClassNotFoundException e) {
+                    throw new IOException("Failed to read the shard of UI " + uiId, e);
+                }
+                if (ui == null) {
+                    throw new InvalidObjectException("The shard of UI " + uiId + " is missing");
+                }
+                this.uis.put(uiId, ui);
+            }
+            return ui;
+        }
+    }
+
+    /**
+     * Resolves the session reference of a shard to the VaadinSession being read.
+     */
+    private static final class ShardResolver extends ObjectSubstitution {
+
+        @Override
+        protected Object resolve(final Object object) throws IOException {
+
+            if (object != SessionReference.INSTANCE) {
+                return object;
+            }
+            final VaadinSession vaadinSession = VaadinSession.getCurrent();
+            if (vaadinSession == null) {
+                throw new InvalidObjectException("A UI shard can only be read within the shell of its VaadinSession");
+            }
+            return vaadinSession;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.acme.servlet.redisextension;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.vertx.mutiny.redis.client.Request;
+import io.vertx.mutiny.redis.client.Response;
+
+/**
+ * Tests the overflow policies of the {@link AsyncWriteQueue}. The queues hold a single write, and their writer is blocked by the first write until
+ * it is released, so the queue is full after the second write.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+class AsyncWriteQueueTest {
+
+    private static final String SESSION_ID = "session";
+    private static final long TIMEOUT_SECONDS = 5;
+    /**
+     * The time a write that must not be dropped is given to get queued, although the queue is full.
+     */
+    private static final long BLOCKED_MILLIS = 200;
+
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch released = new CountDownLatch(1);
+    private final AtomicInteger sent = new AtomicInteger();
+    private AsyncWriteQueue queue;
+
+    @AfterEach
+    void stopQueue() {
+
+        this.released.countDown();
+        if (this.queue != null) {
+            this.queue.stop();
+        }
+    }
+
+    @Test
+    void waitsForSpaceWithBlockPolicy() throws Exception {
+
+        fill(AsyncOverflowPolicy.BLOCK);
+
+        final CompletableFuture<CompletableFuture<List<Response>>> blocked = submitAsync(true);
+        assertBlocked(blocked);
+    }
+
+    @Test
+    void dropsOldestDroppableWrite() throws Exception {
+
+        final CompletableFuture<List<Response>> queued = fill(AsyncOverflowPolicy.DROP_OLDEST);
+
+        final CompletableFuture<List<Response>> write = this.queue.submit(SESSION_ID, requests(), true);
+        assertTrue(queued.isCompletedExceptionally());
+        this.released.countDown();
+        write.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(2, this.sent.get());
+    }
+
+    @Test
+    void neverDropsWritesThatMustNotBeDropped() throws Exception {
+
+        this.queue = new AsyncWriteQueue(this::send, Duration.ofSeconds(TIMEOUT_SECONDS), 1, 1, AsyncOverflowPolicy.DROP_OLDEST);
+        this.queue.submit(SESSION_ID, requests(), true);
+        assertTrue(this.started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        final CompletableFuture<List<Response>> delete = this.queue.submit(SESSION_ID, requests(), false);
+
+        final CompletableFuture<CompletableFuture<List<Response>>> blocked = submitAsync(true);
+        assertBlocked(blocked);
+        assertFalse(delete.isCompletedExceptionally());
+    }
+
+    @Test
+    void rejectsDroppableWritesWithFailFastPolicy() throws Exception {
+
+        final CompletableFuture<List<Response>> queued = fill(AsyncOverflowPolicy.FAIL_FAST);
+
+        // rejected by a failed future instead of an exception, so the write is handled like a lost one
+        final CompletableFuture<List<Response>> rejected = this.queue.submit(SESSION_ID, requests(), true);
+        assertTrue(rejected.isCompletedExceptionally());
+        assertFalse(queued.isDone());
+    }
+
+    @Test
+    void waitsForSpaceForWritesThatMustNotBeDroppedWithFailFastPolicy() throws Exception {
+
+        fill(AsyncOverflowPolicy.FAIL_FAST);
+
+        final CompletableFuture<CompletableFuture<List<Response>>> blocked = submitAsync(false);
+        assertBlocked(blocked);
+    }
+
+    /**
+     * Creates the queue and fills it, the first write is taken by the writer and blocks it.
+     *
+     * @return the result of the write waiting in the queue
+     */
+    private CompletableFuture<List<Response>> fill(final AsyncOverflowPolicy overflowPolicy) throws InterruptedException {
+
+        this.queue = new AsyncWriteQueue(this::send, Duration.ofSeconds(TIMEOUT_SECONDS), 1, 1, overflowPolicy);
+        this.queue.submit(SESSION_ID, requests(), true);
+        assertTrue(this.started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return this.queue.submit(SESSION_ID, requests(), true);
+    }
+
+    private CompletableFuture<CompletableFuture<List<Response>>> submitAsync(final boolean droppable) {
+
+        return CompletableFuture.supplyAsync(() -> this.queue.submit(SESSION_ID, requests(), droppable));
+    }
+
+    /**
+     * Checks that a write waits for space in the queue, and is queued and written once the writer has been released.
+     */
+    private void assertBlocked(final CompletableFuture<CompletableFuture<List<Response>>> submission) throws Exception {
+
+        Thread.sleep(BLOCKED_MILLIS);
+        assertFalse(submission.isDone());
+
+        this.released.countDown();
+        final CompletableFuture<List<Response>> write = submission.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        write.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(3, this.sent.get());
+    }
+
+    private List<Response> send(final String sessionId, final List<Request> requests) {
+
+        this.started.countDown();
+        try {
+            if (!this.released.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("The writer has not been released");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+        this.sent.incrementAndGet();
+        return Collections.emptyList();
+    }
+
+    private static List<Request> requests() {
+
+        return Collections.emptyList();
+    }
+}
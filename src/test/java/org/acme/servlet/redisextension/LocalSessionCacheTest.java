@@ -0,0 +1,121 @@
+package org.acme.servlet.redisextension;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the {@link LocalSessionCache}. The caches have a budget of ten sessions of 1000 bytes, which leaves a window of 100 bytes, so every session
+ * leaves the window right away and has to be admitted to the main area.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+class LocalSessionCacheTest {
+
+    private static final long MAX_WEIGHT = 10_000;
+    private static final long WEIGHT = 1000;
+
+    @Test
+    void evictsNothingWithoutBudget() {
+
+        final LocalSessionCache cache = new LocalSessionCache(0, sessionId -> true);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Collections.emptyList(), cache.update("s" + i, WEIGHT));
+        }
+
+        assertFalse(cache.isBounded());
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    void countsHitsAndMisses() {
+
+        final LocalSessionCache cache = new LocalSessionCache(MAX_WEIGHT, sessionId -> true);
+        cache.recordHit("s0");
+        cache.recordHit("s1");
+        cache.recordMiss();
+
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void rejectsRarelyUsedSessions() {
+
+        final LocalSessionCache cache = fill(sessionId -> true);
+
+        assertEquals(Collections.singletonList("s10"), cache.update("s10", WEIGHT));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(MAX_WEIGHT, cache.getWeight());
+    }
+
+    @Test
+    void rejectsLargeSessionsUsedLessThanSmallOnes() {
+
+        final LocalSessionCache cache = fill(sessionId -> true);
+        for (int i = 0; i < 10; i++) {
+            cache.recordHit("s" + i);
+        }
+
+        assertEquals(Collections.singletonList("large"), cache.update("large", 5 * WEIGHT));
+        assertEquals(MAX_WEIGHT, cache.getWeight());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedSessionForFrequentlyUsedOne() {
+
+        final LocalSessionCache cache = fill(sessionId -> true);
+        cache.recordHit("s0");
+        cache.recordHit("s10");
+        cache.recordHit("s10");
+
+        assertEquals(Collections.singletonList("s1"), cache.update("s10", WEIGHT));
+    }
+
+    @Test
+    void evictsNoSessionInUse() {
+
+        final LocalSessionCache cache = fill(sessionId -> !"s0".equals(sessionId) && !"s10".equals(sessionId));
+
+        // s10 is admitted regardless of its frequency, and s0 is skipped when looking for a victim
+        assertEquals(Collections.singletonList("s1"), cache.update("s10", WEIGHT));
+    }
+
+    @Test
+    void evictsSessionsOnceTheirWeightGrows() {
+
+        final LocalSessionCache cache = fill(sessionId -> true);
+        cache.recordHit("s0");
+
+        assertEquals(Arrays.asList("s1", "s2"), cache.update("s0", 3 * WEIGHT));
+        assertEquals(MAX_WEIGHT, cache.getWeight());
+    }
+
+    @Test
+    void releasesTheWeightOfRemovedSessions() {
+
+        final LocalSessionCache cache = fill(sessionId -> true);
+        cache.remove("s0");
+
+        assertEquals(MAX_WEIGHT - WEIGHT, cache.getWeight());
+        assertEquals(Collections.emptyList(), cache.update("s10", WEIGHT));
+    }
+
+    /**
+     * Creates a cache holding the sessions s0 to s9, which fill its budget.
+     */
+    private static LocalSessionCache fill(final Predicate<String> evictable) {
+
+        final LocalSessionCache cache = new LocalSessionCache(MAX_WEIGHT, evictable);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(Collections.emptyList(), cache.update("s" + i, WEIGHT));
+        }
+        return cache;
+    }
+}
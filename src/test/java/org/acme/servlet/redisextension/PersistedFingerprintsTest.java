@@ -0,0 +1,70 @@
+package org.acme.servlet.redisextension;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the {@link PersistedFingerprints} of a session.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+class PersistedFingerprintsTest {
+
+    private static final AttributeFingerprint A = fingerprint("A");
+    private static final AttributeFingerprint B = fingerprint("B");
+
+    private final PersistedFingerprints fingerprints = new PersistedFingerprints();
+
+    @Test
+    void writesAttributeChangedBackWhileWriteIsQueued() {
+
+        this.fingerprints.loaded("attribute", A);
+        assertTrue(this.fingerprints.matches("attribute", A));
+
+        // the attribute is changed to B, and back to A while the write of B has not been applied yet
+        this.fingerprints.queued(Collections.singletonMap("attribute", B), Collections.emptyList());
+        assertFalse(this.fingerprints.matches("attribute", A));
+
+        this.fingerprints.queued(Collections.singletonMap("attribute", A), Collections.emptyList());
+        assertTrue(this.fingerprints.matches("attribute", A));
+    }
+
+    @Test
+    void forgetsRemovedFields() {
+
+        this.fingerprints.loaded("attribute", A);
+        this.fingerprints.loaded(":ui:1:attribute", B);
+        this.fingerprints.queued(Collections.emptyMap(), Collections.singletonList(":ui:1:attribute"));
+
+        assertFalse(this.fingerprints.contains(":ui:1:attribute"));
+        assertFalse(this.fingerprints.matches(":ui:1:attribute", B));
+        assertEquals(Collections.singleton("attribute"), this.fingerprints.fields());
+    }
+
+    @Test
+    void writesAllFieldsAfterLostWrite() {
+
+        this.fingerprints.loaded("first", A);
+        this.fingerprints.queued(Collections.singletonMap("second", B), Collections.emptyList());
+        assertEquals(new HashSet<>(Arrays.asList("first", "second")), this.fingerprints.fields());
+
+        this.fingerprints.clear();
+        assertFalse(this.fingerprints.matches("first", A));
+        assertFalse(this.fingerprints.matches("second", B));
+        assertFalse(this.fingerprints.contains("second"));
+    }
+
+    private static AttributeFingerprint fingerprint(final String value) {
+
+        return AttributeFingerprint.of(value.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,123 @@
+package org.acme.servlet.redisextension;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.acme.servlet.redisextension.RedisCircuitBreaker.State;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the {@link RedisCircuitBreaker}. The breakers open after three failures in a row, and count calls taking longer than 100 ms as failures.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+class RedisCircuitBreakerTest {
+
+    private static final long FAST_CALL_NANOS = 1_000_000L;
+    private static final long SLOW_CALL_NANOS = 200_000_000L;
+
+    private final AtomicInteger recoveries = new AtomicInteger();
+
+    @Test
+    void opensAfterFailuresInARow() {
+
+        final RedisCircuitBreaker breaker = breaker(60_000);
+        breaker.onFailure();
+        breaker.onFailure();
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.allowRequest());
+
+        breaker.onFailure();
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    void resetsFailuresOnSuccess() {
+
+        final RedisCircuitBreaker breaker = breaker(60_000);
+        breaker.onFailure();
+        breaker.onFailure();
+        breaker.onSuccess(FAST_CALL_NANOS);
+        breaker.onFailure();
+        breaker.onFailure();
+
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void countsSlowCallsAsFailures() {
+
+        final RedisCircuitBreaker breaker = breaker(60_000);
+        breaker.onSuccess(SLOW_CALL_NANOS);
+        breaker.onFailure();
+        breaker.onSuccess(SLOW_CALL_NANOS);
+
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void letsASingleProbeThroughOnceOpenTimeIsOver() {
+
+        final RedisCircuitBreaker breaker = open(breaker(0));
+
+        assertTrue(breaker.allowRequest());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    void closesAndRunsRecoveryAfterSuccessfulProbe() {
+
+        final RedisCircuitBreaker breaker = open(breaker(0));
+        breaker.allowRequest();
+        breaker.onSuccess(FAST_CALL_NANOS);
+
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(1, this.recoveries.get());
+        assertTrue(breaker.allowRequest());
+
+        breaker.onSuccess(FAST_CALL_NANOS);
+        assertEquals(1, this.recoveries.get());
+    }
+
+    @Test
+    void reopensAfterFailedProbe() {
+
+        final RedisCircuitBreaker breaker = open(breaker(0));
+        breaker.allowRequest();
+        breaker.onFailure();
+
+        assertEquals(State.OPEN, breaker.getState());
+        assertEquals(0, this.recoveries.get());
+    }
+
+    @Test
+    void reopensAfterSlowProbe() {
+
+        final RedisCircuitBreaker breaker = open(breaker(0));
+        breaker.allowRequest();
+        breaker.onSuccess(SLOW_CALL_NANOS);
+
+        assertEquals(State.OPEN, breaker.getState());
+        assertEquals(0, this.recoveries.get());
+    }
+
+    private RedisCircuitBreaker breaker(final long openMillis) {
+
+        return new RedisCircuitBreaker(3, 100, openMillis, this.recoveries::incrementAndGet);
+    }
+
+    private static RedisCircuitBreaker open(final RedisCircuitBreaker breaker) {
+
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure();
+        }
+        assertEquals(State.OPEN, breaker.getState());
+        return breaker;
+    }
+}
@@ -0,0 +1,121 @@
+package org.acme.servlet.redisextension;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import io.vertx.mutiny.redis.client.Redis;
+
+/**
+ * Tests the routing of sessions by the {@link RedisTopology}. The shards are clients without connection, they only serve to tell the shards apart.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+class RedisTopologyTest {
+
+    private static final int SESSIONS = 30_000;
+    private static final List<String> URIS = Arrays.asList("redis://redis-0:6379", "redis://redis-1:6379", "redis://redis-2:6379",
+            "redis://redis-3:6379");
+
+    private final Map<String, Redis> shards = new HashMap<>();
+
+    @Test
+    void routesAllSessionsToSingleEndpoint() {
+
+        final Redis redis = shard(URIS.get(0));
+        final RedisTopology topology = new RedisTopology(redis, false);
+
+        for (int i = 0; i < 100; i++) {
+            assertSame(redis, topology.forSession(sessionId(i)));
+        }
+        assertFalse(topology.isPartitioned());
+        assertTrue(new RedisTopology(redis, true).isPartitioned());
+    }
+
+    @Test
+    void routesSessionsIndependentOfShardOrder() {
+
+        final RedisTopology topology = topology(URIS);
+        final RedisTopology reordered = topology(Arrays.asList(URIS.get(2), URIS.get(0), URIS.get(3), URIS.get(1)));
+
+        for (int i = 0; i < SESSIONS; i++) {
+            assertSame(topology.forSession(sessionId(i)), reordered.forSession(sessionId(i)));
+        }
+        assertSame(shard(URIS.get(2)), reordered.primary());
+    }
+
+    @Test
+    void spreadsSessionsEvenly() {
+
+        final RedisTopology topology = topology(URIS);
+        final Map<Redis, Integer> counts = new IdentityHashMap<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            counts.merge(topology.forSession(sessionId(i)), 1, Integer::sum);
+        }
+
+        assertEquals(URIS.size(), counts.size());
+        final int expected = SESSIONS / URIS.size();
+        for (final Map.Entry<Redis, Integer> count : counts.entrySet()) {
+            assertTrue(Math.abs(count.getValue() - expected) < expected / 5, () -> "Uneven spread " + counts.values());
+        }
+    }
+
+    @Test
+    void movesOnlySessionsOfAddedShard() {
+
+        final RedisTopology topology = topology(URIS.subList(0, 3));
+        final RedisTopology extended = topology(URIS);
+        final Redis added = shard(URIS.get(3));
+
+        int moved = 0;
+        for (int i = 0; i < SESSIONS; i++) {
+            final Redis shard = extended.forSession(sessionId(i));
+            if (shard == added) {
+                moved++;
+            } else {
+                assertSame(topology.forSession(sessionId(i)), shard);
+            }
+        }
+        final int expected = SESSIONS / URIS.size();
+        assertTrue(Math.abs(moved - expected) < expected / 5, "Uneven share of added shard " + moved);
+    }
+
+    @Test
+    void hashesDeterministically() {
+
+        assertEquals(RedisTopology.hash("session"), RedisTopology.hash("session"));
+        assertFalse(RedisTopology.hash("session-1") == RedisTopology.hash("session-2"));
+    }
+
+    private RedisTopology topology(final List<String> uris) {
+
+        final List<Redis> clients = new ArrayList<>();
+        for (final String uri : uris) {
+            clients.add(shard(uri));
+        }
+        final RedisTopology topology = new RedisTopology(uris, clients);
+        assertTrue(topology.isPartitioned());
+        return topology;
+    }
+
+    private Redis shard(final String uri) {
+
+        return this.shards.computeIfAbsent(uri, key -> new Redis((io.vertx.redis.client.Redis) null));
+    }
+
+    private static String sessionId(final int session) {
+
+        return "session-" + session;
+    }
+}
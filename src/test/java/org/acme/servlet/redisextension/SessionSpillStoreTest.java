@@ -0,0 +1,146 @@
+package org.acme.servlet.redisextension;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertIterableEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the {@link SessionSpillStore}. The file holds 1024 bytes, and a session with the id "s0" and a single field "a" of 177 bytes takes a record
+ * of 200 bytes, so five such records fit into the file.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+class SessionSpillStoreTest {
+
+    private static final int CAPACITY = 1024;
+    private static final int RECORD_VALUE_LENGTH = 177;
+
+    @TempDir
+    Path directory;
+
+    private Path file;
+    private SessionSpillStore store;
+
+    @BeforeEach
+    void createStore() throws IOException {
+
+        this.file = this.directory.resolve("sessions.spill");
+        this.store = new SessionSpillStore(this.file, CAPACITY);
+    }
+
+    @AfterEach
+    void closeStore() {
+
+        this.store.close();
+    }
+
+    @Test
+    void takesStoredFieldsInOrderOnce() {
+
+        final Map<String, byte[]> fields = new LinkedHashMap<>();
+        fields.put("b", new byte[] { 1, 2, 3 });
+        fields.put("a", new byte[0]);
+        fields.put("c", new byte[] { 4 });
+        assertTrue(this.store.put("s0", fields));
+
+        final Map<String, byte[]> taken = this.store.take("s0");
+        assertIterableEquals(Arrays.asList("b", "a", "c"), taken.keySet());
+        assertArrayEquals(new byte[] { 1, 2, 3 }, taken.get("b"));
+        assertArrayEquals(new byte[0], taken.get("a"));
+        assertArrayEquals(new byte[] { 4 }, taken.get("c"));
+        assertNull(this.store.take("s0"));
+    }
+
+    @Test
+    void replacesStoredFields() {
+
+        this.store.put("s0", Collections.singletonMap("a", new byte[] { 1 }));
+        this.store.put("s0", Collections.singletonMap("b", new byte[] { 2 }));
+
+        final Map<String, byte[]> taken = this.store.take("s0");
+        assertIterableEquals(Collections.singleton("b"), taken.keySet());
+        assertArrayEquals(new byte[] { 2 }, taken.get("b"));
+    }
+
+    @Test
+    void rejectsRecordsLargerThanAQuarterOfTheFile() {
+
+        assertTrue(this.store.put("s0", record(0, CAPACITY / 4 - 23)));
+        assertFalse(this.store.put("s1", record(1, CAPACITY / 4 - 22)));
+        assertNull(this.store.take("s1"));
+    }
+
+    @Test
+    void compactsRemovedRecords() {
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(this.store.put("s" + i, record(i, RECORD_VALUE_LENGTH)));
+        }
+        for (int i = 0; i < 4; i++) {
+            assertNotNull(this.store.take("s" + i));
+        }
+        // the end of the file is reached, so the record of s4 is moved to its start
+        assertTrue(this.store.put("s5", record(5, RECORD_VALUE_LENGTH)));
+        assertTrue(this.store.put("s6", record(6, RECORD_VALUE_LENGTH)));
+
+        assertArrayEquals(value(4, RECORD_VALUE_LENGTH), this.store.take("s4").get("a"));
+        assertArrayEquals(value(5, RECORD_VALUE_LENGTH), this.store.take("s5").get("a"));
+        assertArrayEquals(value(6, RECORD_VALUE_LENGTH), this.store.take("s6").get("a"));
+    }
+
+    @Test
+    void dropsOldestRecordsIfTheFileIsFull() {
+
+        for (int i = 0; i < 5; i++) {
+            this.store.put("s" + i, record(i, RECORD_VALUE_LENGTH));
+        }
+        // s5 fits once the space of s1 is reclaimed, s6 only once the oldest record is dropped
+        this.store.remove("s1");
+        assertTrue(this.store.put("s5", record(5, RECORD_VALUE_LENGTH)));
+        assertTrue(this.store.put("s6", record(6, RECORD_VALUE_LENGTH)));
+
+        assertNull(this.store.take("s0"));
+        for (int i = 2; i < 7; i++) {
+            assertArrayEquals(value(i, RECORD_VALUE_LENGTH), this.store.take("s" + i).get("a"));
+        }
+    }
+
+    @Test
+    void deletesTheFileOnClose() {
+
+        this.store.put("s0", record(0, 1));
+        this.store.close();
+
+        assertFalse(Files.exists(this.file));
+        assertNull(this.store.take("s0"));
+    }
+
+    private static Map<String, byte[]> record(final int session, final int valueLength) {
+
+        return Collections.singletonMap("a", value(session, valueLength));
+    }
+
+    private static byte[] value(final int session, final int length) {
+
+        final byte[] value = new byte[length];
+        Arrays.fill(value, (byte) session);
+        return value;
+    }
+}
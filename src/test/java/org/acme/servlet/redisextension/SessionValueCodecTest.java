@@ -0,0 +1,214 @@
+package org.acme.servlet.redisextension;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.Unpooled;
+
+/**
+ * Tests the header, compression and legacy formats of the values written and read by the {@link SessionValueCodec}.
+ *
+ * @author Inacta AG
+ * @since 1.0.0
+ */
+class SessionValueCodecTest {
+
+    private static final String COMPRESSIBLE = String.join("", Collections.nCopies(100, "session"));
+
+    @Test
+    void startsValuesWithFormatIdOfSerializer() throws Exception {
+
+        final SessionValueCodec codec = codec(new CompactSessionAttributeSerializer(), -1);
+        final byte[] value = toValue(codec, COMPRESSIBLE);
+
+        assertEquals(CompactSessionAttributeSerializer.FORMAT_ID, value[0]);
+        assertEquals(COMPRESSIBLE, decode(codec, value));
+    }
+
+    @Test
+    void compressesValuesLargerThanThreshold() throws Exception {
+
+        final int payloadLength = toValue(codec(new JdkSessionAttributeSerializer(), -1), COMPRESSIBLE).length - 1;
+
+        final SessionValueCodec atThreshold = codec(new JdkSessionAttributeSerializer(), payloadLength);
+        final byte[] uncompressed = toValue(atThreshold, COMPRESSIBLE);
+        assertEquals(JdkSessionAttributeSerializer.FORMAT_ID, uncompressed[0]);
+        assertEquals(payloadLength + 1, uncompressed.length);
+        assertEquals(COMPRESSIBLE, decode(atThreshold, uncompressed));
+
+        final SessionValueCodec belowThreshold = codec(new JdkSessionAttributeSerializer(), payloadLength - 1);
+        final byte[] compressed = toValue(belowThreshold, COMPRESSIBLE);
+        assertEquals(JdkSessionAttributeSerializer.FORMAT_ID | 0x10, compressed[0]);
+        assertEquals(COMPRESSIBLE, decode(belowThreshold, compressed));
+        assertEquals(COMPRESSIBLE, decode(atThreshold, compressed));
+    }
+
+    @Test
+    void createsSameValueForSameAttribute() throws Exception {
+
+        final SessionValueCodec codec = codec(new JdkSessionAttributeSerializer(), 0);
+        final SerializationBuffer buffer = SerializationBuffer.acquire();
+        codec.encode(COMPRESSIBLE, buffer);
+
+        assertTrue(codec.mayCompress(buffer));
+        assertFalse(codec(new JdkSessionAttributeSerializer(), -1).mayCompress(buffer));
+        assertFalse(codec(new JdkSessionAttributeSerializer(), buffer.size() - 1).mayCompress(buffer));
+
+        // the fingerprints of written values are compared with the ones of the compressed values loaded from Redis
+        final byte[] value = codec.toValue(buffer);
+        assertArrayEquals(value, toValue(codec, COMPRESSIBLE));
+    }
+
+    @Test
+    void storesIncompressibleValuesUncompressed() throws Exception {
+
+        final byte[] random = new byte[1000];
+        new Random(42).nextBytes(random);
+        final SessionValueCodec codec = codec(new JdkSessionAttributeSerializer(), 0);
+        final byte[] value = toValue(codec, random);
+
+        assertEquals(JdkSessionAttributeSerializer.FORMAT_ID, value[0]);
+        assertArrayEquals(random, (byte[]) decode(codec, value));
+    }
+
+    @Test
+    void compactsOnlyLargeUncompressedValues() throws Exception {
+
+        final SessionValueCodec codec = codec(new JdkSessionAttributeSerializer(), -1);
+        final byte[] value = toValue(codec, COMPRESSIBLE);
+
+        assertSame(value, codec.compact(value, value.length));
+        final byte[] compacted = codec.compact(value, value.length - 1);
+        assertEquals(JdkSessionAttributeSerializer.FORMAT_ID | 0x10, compacted[0]);
+        assertEquals(COMPRESSIBLE, decode(codec, compacted));
+        assertSame(compacted, codec.compact(compacted, 0));
+
+        final byte[] legacy = legacyValue(COMPRESSIBLE);
+        assertSame(legacy, codec.compact(legacy, 0));
+    }
+
+    @Test
+    void readsValuesOfAdditionalSerializers() throws Exception {
+
+        final byte[] value = toValue(codec(new JdkSessionAttributeSerializer(), -1), COMPRESSIBLE);
+        final SessionValueCodec codec = new SessionValueCodec(new CompactSessionAttributeSerializer(),
+                Collections.singletonList(new JdkSessionAttributeSerializer()), -1);
+
+        assertEquals(COMPRESSIBLE, decode(codec, value));
+    }
+
+    @Test
+    void readsLegacyValues() throws Exception {
+
+        final SessionValueCodec codec = codec(new CompactSessionAttributeSerializer(), -1);
+        final byte[] legacy = legacyValue(COMPRESSIBLE);
+
+        assertEquals((byte) 0xAC, legacy[0]);
+        assertEquals(COMPRESSIBLE, decode(codec, legacy));
+        assertEquals(COMPRESSIBLE, decode(codec, Base64.getEncoder().encode(legacy)));
+    }
+
+    @Test
+    void rejectsUnknownValues() {
+
+        final SessionValueCodec codec = codec(new JdkSessionAttributeSerializer(), -1);
+
+        assertThrows(IOException.class, () -> decode(codec, new byte[0]));
+        assertThrows(IOException.class, () -> decode(codec, new byte[] { CompactSessionAttributeSerializer.FORMAT_ID, 0 }));
+        assertThrows(IOException.class, () -> decode(codec, new byte[] { JdkSessionAttributeSerializer.FORMAT_ID | 0x30, 0 }));
+    }
+
+    @Test
+    void rejectsConflictingFormatIds() {
+
+        assertThrows(IllegalArgumentException.class, () -> codec(new CustomSerializer(0), -1));
+        assertThrows(IllegalArgumentException.class, () -> codec(new CustomSerializer(16), -1));
+        assertThrows(IllegalArgumentException.class, () -> codec(new CustomSerializer(JdkSessionAttributeSerializer.FORMAT_ID), -1));
+        assertThrows(IllegalArgumentException.class, () -> codec(new CustomSerializer(CompactSessionAttributeSerializer.FORMAT_ID), -1));
+        assertThrows(IllegalArgumentException.class,
+                () -> new SessionValueCodec(new CustomSerializer(3), Collections.singletonList(new OtherCustomSerializer(3)), -1));
+
+        new SessionValueCodec(new CustomSerializer(3), Arrays.asList(new CustomSerializer(3), new JdkSessionAttributeSerializer()), -1);
+    }
+
+    private static SessionValueCodec codec(final SessionAttributeSerializer serializer, final int compressionThreshold) {
+
+        return new SessionValueCodec(serializer, Collections.emptyList(), compressionThreshold);
+    }
+
+    private static byte[] toValue(final SessionValueCodec codec, final Object attribute) throws IOException {
+
+        final SerializationBuffer buffer = SerializationBuffer.acquire();
+        codec.encode(attribute, buffer);
+        return codec.toValue(buffer);
+    }
+
+    private static Object decode(final SessionValueCodec codec, final byte[] value) throws IOException, ClassNotFoundException {
+
+        return codec.decode(Unpooled.wrappedBuffer(value));
+    }
+
+    /**
+     * Creates a value as written before the header was introduced, a raw Java serialization stream.
+     */
+    private static byte[] legacyValue(final Object attribute) throws IOException {
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (final ObjectOutputStream objectOutputStream = new ObjectOutputStream(outputStream)) {
+            objectOutputStream.writeObject(attribute);
+        }
+        return outputStream.toByteArray();
+    }
+
+    private static class CustomSerializer implements SessionAttributeSerializer {
+
+        private final byte formatId;
+
+        CustomSerializer(final int formatId) {
+
+            this.formatId = (byte) formatId;
+        }
+
+        @Override
+        public byte getFormatId() {
+
+            return this.formatId;
+        }
+
+        @Override
+        public void serialize(final Object value, final OutputStream outputStream) {
+
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Object deserialize(final InputStream inputStream) {
+
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final class OtherCustomSerializer extends CustomSerializer {
+
+        OtherCustomSerializer(final int formatId) {
+
+            super(formatId);
+        }
+    }
+}